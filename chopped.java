@@ -1,10 +1,55 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.charset.StandardCharsets;
 
 /**
  * The main class for the Chopped programming language interpreter.
@@ -15,36 +60,1403 @@ public class chopped {
     /**
      * The main entry point of the program.
      * If a file is provided, executes it; otherwise, enters REPL.
-     * @param args Command-line arguments: optional file name.
+     * Budget flags (--max-steps, --max-time, --max-list, --max-string, --max-depth) may precede the file name.
+     * Use --daemon socket [flags] to start a warm interpreter, and --connect socket [flags] file to run a script on it.
+     * Use --batch dir [--jobs N] [flags] to run every script in a directory concurrently.
+     * @param args Command-line arguments: optional budget flags and file name.
      */
     public static void main(String[] args) {
-        if (args.length > 0) {
+        if (args.length >= 2 && args[0].equals("--daemon")) {
+            Options options;
             try {
-                String fileName = args[0];
-                String content = new String(Files.readAllBytes(Paths.get(fileName)));
-                Lexer.lexar(content);
+                options = parseArgs(Arrays.copyOfRange(args, 2, args.length));
+                if (options.fileName != null) throw new RuntimeException("The daemon takes budget flags but no script");
+                if (options.stateFile != null) throw new RuntimeException("--state cannot be used with --daemon");
             } catch (Exception e) {
-                System.out.println("Error reading file: " + e.getMessage());
+                System.out.println("Error: " + e.getMessage());
+                return;
             }
+            Daemon.serve(Paths.get(args[1]), options.limits);
+            return;
+        }
+        if (args.length == 1 && args[0].equals("--bench-format")) {
+            NumberFormatter.benchmark();
+            return;
+        }
+        if (args.length >= 2 && args[0].equals("--batch")) {
+            Batch.run(Paths.get(args[1]), Arrays.copyOfRange(args, 2, args.length));
+            return;
+        }
+        if (args.length >= 2 && args[0].equals("--connect")) {
+            Daemon.connect(Paths.get(args[1]), Arrays.copyOfRange(args, 2, args.length));
+            return;
+        }
+        Options options;
+        try {
+            options = parseArgs(args);
+        } catch (Exception e) {
+            System.out.println("Error: " + e.getMessage());
+            return;
+        }
+        if (options.fileName != null) {
+            runScript(options.fileName, options.limits, options.stateFile, System.out, System.in, Paths.get(""));
         } else {
             System.out.println("Welcome to the chopped parser! \n");
             Scanner scanner = new Scanner(System.in);
+            Parser parser = new Parser(options.limits, System.out, System.in, Paths.get(""));
+            Path stateFile = options.stateFile == null ? null : Paths.get(options.stateFile);
+            if (stateFile != null && Files.exists(stateFile)) {
+                try {
+                    parser.loadState(stateFile);
+                } catch (Exception e) {
+                    System.out.println("Error: " + e.getMessage());
+                }
+            }
             while (true) {
                 System.out.print("Chopped > ");
+                if (!scanner.hasNextLine()) break;
                 String programText = scanner.nextLine();
                 try {
+                    parser.startRun();
                     if (programText.startsWith("chopped ")) {
-                        String fileName = programText.substring(8).trim();
-                        String content = new String(Files.readAllBytes(Paths.get(fileName)));
-                        Lexer.lexar(content);
+                        Path include = Paths.get(programText.substring(8).trim());
+                        List<Token> tokens = Lexer.lexFile(include);
+                        parser.prepared = Includes.prepare(include, tokens, Paths.get(""));
+                        parser.parse(tokens);
                     } else {
-                        Lexer.lexar(programText);
+                        parser.parse(Lexer.lexar(programText));
                     }
                 } catch (Exception e) {
                     System.out.println("Error: " + e.getMessage());
                 }
+                if (stateFile != null) {
+                    try {
+                        parser.saveState(stateFile);
+                    } catch (Exception e) {
+                        System.out.println("Error: " + e.getMessage());
+                    }
+                }
+            }
+            System.out.println();
+        }
+    }
+
+    /**
+     * What a command line asks for: the script to run, its budgets and an optional state snapshot.
+     */
+    private static class Options {
+        final Limits limits = new Limits();
+        String fileName;
+        String stateFile;
+    }
+
+    /**
+     * Reads budget flags, --state and the script name.
+     * @param args Command-line arguments: optional flags and file name.
+     * @return The options; the script name is null if none was given.
+     */
+    private static Options parseArgs(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--")) {
+                if (i + 1 >= args.length) throw new RuntimeException("Missing value for " + args[i]);
+                if (args[i].equals("--state")) {
+                    options.stateFile = args[i + 1];
+                } else {
+                    options.limits.apply(args[i], args[i + 1]);
+                }
+                i++;
+            } else {
+                options.fileName = args[i];
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Runs a script file in a fresh interpreter.
+     * @param fileName The script to run, relative to baseDir.
+     * @param limits The execution budgets for the run.
+     * @param stateFile A snapshot to load before the run, if it exists, and to save after it; or null.
+     * @param out Where the script's output goes.
+     * @param in Where the script's ask prompts read from.
+     * @param baseDir The directory the script and its includes are resolved against.
+     * @return true if the script ran without errors.
+     */
+    private static boolean runScript(String fileName, Limits limits, String stateFile, PrintStream out, InputStream in, Path baseDir) {
+        Path entry = baseDir.resolve(fileName);
+        List<Token> tokens;
+        Map<Path, List<Token>> prepared;
+        try {
+            tokens = Lexer.lexFile(entry);
+            prepared = Includes.prepare(entry, tokens, baseDir);
+        } catch (IOException e) {
+            out.println("Error reading file: " + e.getMessage());
+            return false;
+        } catch (Exception e) {
+            out.println("Error: " + e.getMessage());
+            return false;
+        }
+        Parser parser = new Parser(limits, out, in, baseDir);
+        parser.prepared = prepared;
+        parser.including.add(entry.toAbsolutePath().normalize());
+        Path state = stateFile == null ? null : baseDir.resolve(stateFile);
+        try {
+            if (state != null && Files.exists(state)) parser.loadState(state);
+            parser.startRun();
+            parser.parse(tokens);
+            if (state != null) parser.saveState(state);
+        } catch (Exception e) {
+            out.println("Error: " + e.getMessage());
+            return false;
+        }
+        return !parser.failed;
+    }
+
+    /**
+     * Resolves a script's chopped includes ahead of time: follows them transitively and reads and lexes every
+     * reachable file in parallel. Nothing is rejected here, because a chopped statement may sit in a branch that
+     * never runs; include cycles are caught by parseChopped when an include actually runs.
+     */
+    public static class Includes {
+        private static final ExecutorService loaders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+            Thread thread = new Thread(task, "chopped-include-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        /**
+         * Builds the include graph from the entry script and loads every file in it.
+         * Files that cannot be read are left out, so the error surfaces when the include actually runs.
+         * @param entry The entry script.
+         * @param entryTokens The entry script's tokens.
+         * @param baseDir The directory include names are resolved against.
+         * @return The tokens of every reachable include, keyed by absolute normalized path.
+         */
+        static Map<Path, List<Token>> prepare(Path entry, List<Token> entryTokens, Path baseDir) throws InterruptedException {
+            Path root = entry.toAbsolutePath().normalize();
+            Map<Path, List<Token>> loaded = new HashMap<>();
+            CompletionService<Map.Entry<Path, List<Token>>> pending = new ExecutorCompletionService<>(loaders);
+            int inFlight = 0;
+
+            loaded.put(root, entryTokens);
+            List<Path> frontier = new ArrayList<>();
+            frontier.add(root);
+            while (true) {
+                for (Path file : frontier) {
+                    for (String name : includeNames(loaded.get(file))) {
+                        Path target = baseDir.resolve(name).toAbsolutePath().normalize();
+                        if (!loaded.containsKey(target)) {
+                            loaded.put(target, null); // claimed, loading
+                            pending.submit(() -> new AbstractMap.SimpleEntry<>(target, Lexer.lexFile(target)));
+                            inFlight++;
+                        }
+                    }
+                }
+                frontier.clear();
+                if (inFlight == 0) break;
+                Future<Map.Entry<Path, List<Token>>> done = pending.take();
+                inFlight--;
+                try {
+                    Map.Entry<Path, List<Token>> result = done.get();
+                    loaded.put(result.getKey(), result.getValue());
+                    frontier.add(result.getKey());
+                } catch (ExecutionException e) {
+                    // unreadable include: reported when it runs
+                }
+            }
+
+            loaded.values().removeIf(tokens -> tokens == null);
+            return loaded;
+        }
+
+        /**
+         * Finds the file names of chopped statements, written as chopped "name" or chopped name.ext.
+         */
+        private static List<String> includeNames(List<Token> tokens) {
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i + 1 < tokens.size(); i++) {
+                if (!tokens.get(i).TokenType.equals("KEYWORD:CHOPPED")) continue;
+                Token next = tokens.get(i + 1);
+                if (next.TokenType.equals("STRING")) {
+                    names.add(next.TokenValue);
+                } else if (next.TokenType.equals("IDENTIFIER")) {
+                    StringBuilder sb = new StringBuilder(next.TokenValue);
+                    if (i + 2 < tokens.size() && tokens.get(i + 2).TokenType.equals("PUNCTUATION:PERIOD")) {
+                        sb.append(".");
+                        if (i + 3 < tokens.size() && tokens.get(i + 3).TokenType.equals("IDENTIFIER")) {
+                            sb.append(tokens.get(i + 3).TokenValue);
+                        }
+                    }
+                    names.add(sb.toString());
+                }
+            }
+            return names;
+        }
+    }
+
+    /**
+     * Runs every .chopped script under a directory concurrently inside one JVM.
+     * Each script gets its own Parser and output buffer and resolves its includes against its own directory;
+     * outputs are printed in path order, then a summary.
+     */
+    public static class Batch {
+
+        /**
+         * Finds and runs the scripts, then prints their outputs and a timing summary.
+         * @param dir The directory to search recursively for .chopped files.
+         * @param args --jobs N (defaults to the number of cores), --exclude glob (repeatable, for helper files that
+         *             only exist to be included) and budget flags applied to every script.
+         */
+        static void run(Path dir, String[] args) {
+            int jobs = Runtime.getRuntime().availableProcessors();
+            Limits limits;
+            List<PathMatcher> excludes = new ArrayList<>();
+            List<Path> scripts;
+            try {
+                List<String> rest = new ArrayList<>();
+                for (int i = 0; i < args.length; i++) {
+                    if (args[i].equals("--jobs") && i + 1 < args.length) {
+                        jobs = Integer.parseInt(args[++i]);
+                        if (jobs <= 0) throw new RuntimeException("--jobs must be positive");
+                    } else if (args[i].equals("--exclude") && i + 1 < args.length) {
+                        excludes.add(dir.getFileSystem().getPathMatcher("glob:" + args[++i]));
+                    } else {
+                        rest.add(args[i]);
+                    }
+                }
+                Options options = parseArgs(rest.toArray(new String[0]));
+                if (options.fileName != null) throw new RuntimeException("Unexpected argument after --batch directory");
+                if (options.stateFile != null) throw new RuntimeException("--state cannot be used with --batch");
+                limits = options.limits;
+                try (Stream<Path> files = Files.walk(dir)) {
+                    scripts = files.filter(f -> Files.isRegularFile(f) && f.toString().endsWith(".chopped"))
+                            .filter(f -> !excluded(dir.relativize(f), excludes)).sorted().collect(Collectors.toList());
+                }
+            } catch (Exception e) {
+                System.out.println("Error: " + e.getMessage());
+                return;
+            }
+
+            long batchStart = System.nanoTime();
+            ExecutorService workers = Executors.newFixedThreadPool(jobs);
+            List<Future<Result>> results = new ArrayList<>();
+            for (Path script : scripts) {
+                results.add(workers.submit(() -> runOne(script, limits)));
+            }
+            workers.shutdown();
+
+            List<Result> finished = new ArrayList<>();
+            for (int i = 0; i < scripts.size(); i++) {
+                Result result;
+                try {
+                    result = results.get(i).get();
+                } catch (Exception e) {
+                    result = new Result(scripts.get(i), "Error: " + e.getMessage() + System.lineSeparator(), 0, false);
+                }
+                finished.add(result);
+                System.out.println("== " + result.script + " ==");
+                System.out.print(result.output);
+            }
+            long batchMillis = (System.nanoTime() - batchStart) / 1_000_000;
+
+            int failures = 0;
+            System.out.println();
+            System.out.println("Batch summary (" + jobs + " jobs):");
+            for (Result result : finished) {
+                if (!result.ok) failures++;
+                System.out.println("  " + (result.ok ? "ok    " : "FAILED") + " " + result.millis + " ms  " + result.script);
+            }
+            System.out.println(scripts.size() + " scripts, " + failures + " failed, " + batchMillis + " ms total");
+        }
+
+        /**
+         * Checks a script against the --exclude globs, which may match its path under the batch directory or just its name.
+         */
+        private static boolean excluded(Path relative, List<PathMatcher> excludes) {
+            for (PathMatcher exclude : excludes) {
+                if (exclude.matches(relative) || exclude.matches(relative.getFileName())) return true;
+            }
+            return false;
+        }
+
+        private static Result runOne(Path script, Limits limits) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(buffer, true);
+            long start = System.nanoTime();
+            Path scriptDir = script.toAbsolutePath().getParent();
+            boolean ok = runScript(script.getFileName().toString(), limits, null, out, InputStream.nullInputStream(), scriptDir);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            out.flush();
+            return new Result(script, buffer.toString(), millis, ok);
+        }
+
+        private static class Result {
+            final Path script;
+            final String output;
+            final long millis;
+            final boolean ok;
+
+            Result(Path script, String output, long millis, boolean ok) {
+                this.script = script;
+                this.output = output;
+                this.millis = millis;
+                this.ok = ok;
+            }
+        }
+    }
+
+    /**
+     * Keeps one interpreter JVM warm behind a Unix domain socket so short scripts skip JVM startup and JIT warm-up.
+     * A request is the client's working directory and its arguments, followed by its stdin as a stream; the reply
+     * is the script's output streamed back until the connection closes. Every request runs in a fresh Parser;
+     * lexed scripts are shared.
+     */
+    public static class Daemon {
+
+        /** The most arguments a request may carry, so a bad client cannot make the daemon allocate without bound. */
+        private static final int MAX_ARGS = 256;
+
+        /** Requests waiting for a worker beyond this are turned away instead of queueing without bound. */
+        private static final int MAX_QUEUED = 64;
+
+        /**
+         * Listens on the socket and runs requests on a fixed pool of workers until the process is stopped.
+         * @param socketPath Where to create the socket; a stale socket file is replaced, and the file is removed on shutdown.
+         * @param ceilings The largest budgets any request may use; requests asking for more, or for nothing, get these.
+         */
+        static void serve(Path socketPath, Limits ceilings) {
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            ExecutorService workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED));
+            try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+                Files.deleteIfExists(socketPath);
+                server.bind(UnixDomainSocketAddress.of(socketPath));
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        Files.deleteIfExists(socketPath);
+                    } catch (IOException e) {
+                        // nothing more to do while exiting
+                    }
+                }));
+                System.out.println("Chopped daemon listening on " + socketPath);
+                while (true) {
+                    SocketChannel client = server.accept();
+                    try {
+                        workers.execute(() -> handle(client, ceilings));
+                    } catch (RejectedExecutionException e) {
+                        refuse(client);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Daemon error: " + e.getMessage());
+            } finally {
+                workers.shutdown();
+            }
+        }
+
+        private static void refuse(SocketChannel client) {
+            try (SocketChannel channel = client) {
+                PrintStream out = new PrintStream(Channels.newOutputStream(channel), true);
+                out.println("Error: daemon is busy, try again");
+            } catch (IOException e) {
+                System.out.println("Daemon request failed: " + e.getMessage());
+            }
+        }
+
+        private static void handle(SocketChannel client, Limits ceilings) {
+            try (SocketChannel channel = client) {
+                InputStream in = Channels.newInputStream(channel);
+                DataInputStream request = new DataInputStream(in);
+                PrintStream out = new PrintStream(new BufferedOutputStream(Channels.newOutputStream(channel)), true);
+                try {
+                    Path baseDir = Paths.get(request.readUTF());
+                    int count = request.readInt();
+                    if (count < 0 || count > MAX_ARGS) throw new IOException("Bad request: " + count + " arguments");
+                    String[] args = new String[count];
+                    for (int i = 0; i < args.length; i++) {
+                        args[i] = request.readUTF();
+                    }
+                    Options options = parseArgs(args);
+                    if (options.fileName == null) throw new RuntimeException("No script given");
+                    options.limits.clampTo(ceilings);
+                    // The rest of the connection is the client's stdin, read only if the script asks for input
+                    runScript(options.fileName, options.limits, options.stateFile, out, in, baseDir);
+                } catch (Exception e) {
+                    out.println("Error: " + e.getMessage());
+                }
+                out.flush();
+            } catch (IOException e) {
+                System.out.println("Daemon request failed: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Sends a script run to a daemon and copies its output to stdout.
+         * Stdin is streamed to the daemon as the script reads it, so piped answers and typed answers both reach
+         * ask prompts, and a script that never asks never waits on the terminal.
+         * @param socketPath The daemon's socket.
+         * @param args Budget flags and the script name, as for a normal run.
+         */
+        static void connect(Path socketPath, String[] args) {
+            try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+                OutputStream toDaemon = Channels.newOutputStream(channel);
+                DataOutputStream request = new DataOutputStream(new BufferedOutputStream(toDaemon));
+                request.writeUTF(Paths.get("").toAbsolutePath().toString());
+                request.writeInt(args.length);
+                for (String arg : args) {
+                    request.writeUTF(arg);
+                }
+                request.flush();
+                Thread stdin = new Thread(() -> {
+                    try {
+                        System.in.transferTo(toDaemon);
+                        channel.shutdownOutput();
+                    } catch (IOException e) {
+                        // the script finished and the daemon closed the connection
+                    }
+                });
+                stdin.setDaemon(true); // never keeps the client alive once the output has ended
+                stdin.start();
+                Channels.newInputStream(channel).transferTo(System.out);
+                System.out.flush();
+            } catch (IOException e) {
+                System.out.println("Error connecting to daemon: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Execution budgets for a single script run, so a runaway recipe fails with an error instead of hanging.
+     * Everything is unlimited by default except call depth, which otherwise ends in a stack overflow.
+     */
+    public static class Limits {
+        long maxSteps = Long.MAX_VALUE;
+        long maxMillis = Long.MAX_VALUE;
+        int maxListSize = Integer.MAX_VALUE;
+        int maxPantrySize = Integer.MAX_VALUE;
+        int maxStringLength = Integer.MAX_VALUE;
+        int maxCallDepth = 256;
+
+        /**
+         * Lowers each budget to the matching ceiling, e.g. the limits a daemon operator allows any request.
+         */
+        void clampTo(Limits ceilings) {
+            maxSteps = Math.min(maxSteps, ceilings.maxSteps);
+            maxMillis = Math.min(maxMillis, ceilings.maxMillis);
+            maxListSize = Math.min(maxListSize, ceilings.maxListSize);
+            maxPantrySize = Math.min(maxPantrySize, ceilings.maxPantrySize);
+            maxStringLength = Math.min(maxStringLength, ceilings.maxStringLength);
+            maxCallDepth = Math.min(maxCallDepth, ceilings.maxCallDepth);
+        }
+
+        /**
+         * Applies a command-line budget flag.
+         * @param flag The flag name, e.g. --max-steps.
+         * @param value The limit as a positive whole number.
+         */
+        void apply(String flag, String value) {
+            long n;
+            try {
+                n = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new RuntimeException("Expected a number for " + flag + " but got " + value);
+            }
+            if (n <= 0) throw new RuntimeException("Limit for " + flag + " must be positive");
+            int asInt = (int) Math.min(n, Integer.MAX_VALUE);
+            switch (flag) {
+                case "--max-steps": maxSteps = n; break;
+                case "--max-time": maxMillis = n; break;
+                case "--max-list": maxListSize = asInt; break;
+                case "--max-pantry": maxPantrySize = asInt; break;
+                case "--max-string": maxStringLength = asInt; break;
+                case "--max-depth": maxCallDepth = asInt; break;
+                default: throw new RuntimeException("Unknown option: " + flag);
+            }
+        }
+    }
+
+    /**
+     * Arithmetic over Chopped numbers: whole numbers are Long (or BigInteger once they outgrow 64 bits),
+     * anything with a fractional part is Double. Whole-number math stays exact and only promotes when it must.
+     */
+    public static class Numbers {
+
+        static boolean isNumber(Object value) {
+            return value instanceof Long || value instanceof Double || value instanceof BigInteger;
+        }
+
+        /**
+         * Parses a number literal or an answer to ask.
+         * @param text The text to parse.
+         * @return A Long or BigInteger for whole numbers, otherwise a Double.
+         * @throws NumberFormatException If the text is not a number.
+         */
+        static Object parse(String text) {
+            String trimmed = text.trim();
+            if (isWhole(trimmed)) {
+                try {
+                    return Long.parseLong(trimmed);
+                } catch (NumberFormatException e) {
+                    return new BigInteger(trimmed);
+                }
+            }
+            return Double.parseDouble(text);
+        }
+
+        /**
+         * Parses a line of input as a number if it is written like a number literal, optionally after a minus sign,
+         * otherwise keeps it as text. Forms Java alone would accept, such as 5f, 1d or 1e3, stay text.
+         */
+        static Object parseOrText(String text) {
+            if (!Token.isNumeric(text.startsWith("-") ? text.substring(1) : text)) return text;
+            try {
+                return parse(text);
+            } catch (NumberFormatException e) {
+                return text;
+            }
+        }
+
+        private static boolean isWhole(String text) {
+            int start = text.startsWith("-") || text.startsWith("+") ? 1 : 0;
+            if (text.length() == start) return false;
+            for (int i = start; i < text.length(); i++) {
+                if (!Character.isDigit(text.charAt(i))) return false;
+            }
+            return true;
+        }
+
+        static Object add(Object left, Object right) {
+            if (left instanceof Long && right instanceof Long) {
+                try {
+                    return Math.addExact((Long) left, (Long) right);
+                } catch (ArithmeticException e) {
+                    return big(left).add(big(right));
+                }
+            }
+            if (left instanceof Double || right instanceof Double) return toDouble(left) + toDouble(right);
+            return normalize(big(left).add(big(right)));
+        }
+
+        static Object subtract(Object left, Object right) {
+            if (left instanceof Long && right instanceof Long) {
+                try {
+                    return Math.subtractExact((Long) left, (Long) right);
+                } catch (ArithmeticException e) {
+                    return big(left).subtract(big(right));
+                }
+            }
+            if (left instanceof Double || right instanceof Double) return toDouble(left) - toDouble(right);
+            return normalize(big(left).subtract(big(right)));
+        }
+
+        static Object multiply(Object left, Object right) {
+            if (left instanceof Long && right instanceof Long) {
+                try {
+                    return Math.multiplyExact((Long) left, (Long) right);
+                } catch (ArithmeticException e) {
+                    return big(left).multiply(big(right));
+                }
+            }
+            if (left instanceof Double || right instanceof Double) return toDouble(left) * toDouble(right);
+            return normalize(big(left).multiply(big(right)));
+        }
+
+        /**
+         * Divides, keeping the result whole when the division is exact and falling back to Double otherwise.
+         */
+        static Object divide(Object left, Object right) {
+            if (left instanceof Long && right instanceof Long) {
+                long l = (Long) left;
+                long r = (Long) right;
+                if (r != 0 && l % r == 0 && !(l == Long.MIN_VALUE && r == -1)) return l / r;
+            } else if (!(left instanceof Double || right instanceof Double) && big(right).signum() != 0) {
+                BigInteger[] quotientAndRemainder = big(left).divideAndRemainder(big(right));
+                if (quotientAndRemainder[1].signum() == 0) return normalize(quotientAndRemainder[0]);
+            }
+            return toDouble(left) / toDouble(right);
+        }
+
+        /**
+         * Compares two numbers for a condition, exactly for whole numbers and with double semantics otherwise.
+         */
+        static boolean compare(Object left, Object right, String op) {
+            if (left instanceof Double || right instanceof Double) {
+                double l = toDouble(left);
+                double r = toDouble(right);
+                switch (op) {
+                    case "OPERATOR:EQUAL": return l == r;
+                    case "OPERATOR:NOT_EQUAL": return l != r;
+                    case "OPERATOR:LESS": return l < r;
+                    case "OPERATOR:GREATER": return l > r;
+                    default: throw new RuntimeException("Invalid comparison operator: " + op);
+                }
+            }
+            int c = left instanceof Long && right instanceof Long ? Long.compare((Long) left, (Long) right) : big(left).compareTo(big(right));
+            switch (op) {
+                case "OPERATOR:EQUAL": return c == 0;
+                case "OPERATOR:NOT_EQUAL": return c != 0;
+                case "OPERATOR:LESS": return c < 0;
+                case "OPERATOR:GREATER": return c > 0;
+                default: throw new RuntimeException("Invalid comparison operator: " + op);
+            }
+        }
+
+        static double toDouble(Object value) {
+            return ((Number) value).doubleValue();
+        }
+
+        /**
+         * Converts a number to an int for counts and indices, saturating instead of wrapping.
+         */
+        static int toInt(Object value) {
+            if (value instanceof Long) return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, (Long) value));
+            if (value instanceof BigInteger) return ((BigInteger) value).signum() < 0 ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+            return ((Double) value).intValue();
+        }
+
+        private static BigInteger big(Object value) {
+            return value instanceof BigInteger ? (BigInteger) value : BigInteger.valueOf((Long) value);
+        }
+
+        private static Object normalize(BigInteger value) {
+            return value.bitLength() < 64 ? (Object) value.longValue() : value;
+        }
+    }
+
+    /**
+     * Formats numbers for output straight into a StringBuilder.
+     * Doubles print as the shortest decimal that reads back as the same double, and whole doubles print without ".0".
+     */
+    public static class NumberFormatter {
+        private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+        private static final long MAX_EXACT = 1L << 53;
+        private static final long NEAR_EXACT = 1L << 50;
+
+        /**
+         * Appends a Long, BigInteger or Double.
+         * @param sb The buffer to append to.
+         * @param number The number to format.
+         */
+        static void append(StringBuilder sb, Object number) {
+            if (number instanceof Long) {
+                sb.append((long) (Long) number);
+            } else if (number instanceof Double) {
+                append(sb, (double) (Double) number);
+            } else {
+                sb.append(number.toString());
+            }
+        }
+
+        /**
+         * Appends a double in plain notation when it has a short exact form, falling back to Double.toString style otherwise.
+         * A candidate m / 10^k with m below 2^53 is checked by dividing in double arithmetic: both operands are exact,
+         * so the division is correctly rounded and equality means the digits parse back to the same double.
+         * @param sb The buffer to append to.
+         * @param v The value to format.
+         */
+        static void append(StringBuilder sb, double v) {
+            if (v != v || Double.isInfinite(v)) {
+                sb.append(v);
+                return;
+            }
+            double abs = Math.abs(v);
+            if (abs < MAX_EXACT && v == (long) v) {
+                if (v == 0 && 1 / v < 0) sb.append('-');
+                sb.append((long) v);
+                return;
+            }
+            if (abs >= 1e-3 && abs < 1e7) {
+                for (int k = 1; k < POWERS_OF_TEN.length; k++) {
+                    double scaled = abs * POWERS_OF_TEN[k];
+                    if (scaled >= MAX_EXACT) break;
+                    long m = Math.round(scaled);
+                    long digits = m / POWERS_OF_TEN[k] == abs ? m : -1;
+                    if (digits < 0 && scaled >= NEAR_EXACT) {
+                        // scaling can be off by one near 2^53, so try the neighbours too
+                        digits = (m - 1) / POWERS_OF_TEN[k] == abs ? m - 1 : (m + 1) / POWERS_OF_TEN[k] == abs ? m + 1 : -1;
+                    }
+                    if (digits >= 0) {
+                        if (v < 0) sb.append('-');
+                        appendScaled(sb, digits, k);
+                        return;
+                    }
+                }
+            }
+            sb.append(v);
+        }
+
+        /**
+         * Appends digits / 10^scale, e.g. 1234 with scale 2 as 12.34 and 5 with scale 3 as 0.005.
+         */
+        private static void appendScaled(StringBuilder sb, long digits, int scale) {
+            long whole = digits / (long) POWERS_OF_TEN[scale];
+            long fraction = digits % (long) POWERS_OF_TEN[scale];
+            sb.append(whole).append('.');
+            for (long limit = (long) POWERS_OF_TEN[scale - 1]; limit > fraction && limit > 1; limit /= 10) {
+                sb.append('0');
             }
-            // scanner.close(); // not reached
+            sb.append(fraction);
+        }
+
+        /**
+         * Benchmarks formatting a mix of doubles against the old "Result: " + value path and checks round-tripping.
+         * Run with java chopped --bench-format.
+         */
+        static void benchmark() {
+            java.util.Random random = new java.util.Random(42);
+            String[] kinds = {"prices", "whole", "random", "large"};
+            double[][] samples = new double[kinds.length][4096];
+            for (int i = 0; i < samples[0].length; i++) {
+                samples[0][i] = random.nextInt(100000) / 100.0;
+                samples[1][i] = random.nextInt(1000000);
+                samples[2][i] = random.nextDouble() * 1000;
+                samples[3][i] = random.nextGaussian() * 1e9;
+            }
+            StringBuilder sb = new StringBuilder();
+            long sink = 0;
+            for (int kind = 0; kind < kinds.length; kind++) {
+                double[] values = samples[kind];
+                int mismatches = 0;
+                for (double v : values) {
+                    sb.setLength(0);
+                    append(sb, v);
+                    if (Double.parseDouble(sb.toString()) != v) mismatches++;
+                }
+                long concatNanos = 0;
+                long formatterNanos = 0;
+                for (int round = 0; round < 40; round++) {
+                    long start = System.nanoTime();
+                    for (double v : values) {
+                        String text = "Result: " + v;
+                        sink += text.length();
+                    }
+                    long middle = System.nanoTime();
+                    for (double v : values) {
+                        sb.setLength(0);
+                        append(sb.append("Result: "), v);
+                        sink += sb.length();
+                    }
+                    long end = System.nanoTime();
+                    if (round >= 20) { // first rounds are warm-up
+                        concatNanos += middle - start;
+                        formatterNanos += end - middle;
+                    }
+                }
+                long ops = 20L * values.length;
+                System.out.println(kinds[kind] + ": string concat " + concatNanos / ops + " ns/op, formatter " + formatterNanos / ops + " ns/op, round-trip mismatches " + mismatches);
+            }
+            System.out.println("(checksum " + sink + ")");
+        }
+    }
+
+    /**
+     * Streams the lines of a file through one reused 1 MB buffer filled by FileChannel reads, so huge files are read
+     * with bounded memory and without a system call per line. Lines are decoded as UTF-8 only when asked for.
+     */
+    public static class LineReader implements AutoCloseable {
+        private static final int BUFFER = 1 << 20;
+        private static final int MAX_LINE = 64 << 20;
+
+        private final FileChannel channel;
+        private byte[] bytes = new byte[BUFFER];
+        private ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        private int start;
+        private int end;
+        private boolean eof;
+
+        LineReader(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        }
+
+        /**
+         * Reads the next line, without its line ending.
+         * @return The line, or null at the end of the file.
+         * @throws IOException If the file cannot be read or a line is longer than 64 MB.
+         */
+        String next() throws IOException {
+            int scan = start;
+            while (true) {
+                for (; scan < end; scan++) {
+                    if (bytes[scan] == '\n') {
+                        String line = decode(start, scan);
+                        start = scan + 1;
+                        return line;
+                    }
+                }
+                if (eof) {
+                    if (start == end) return null;
+                    String line = decode(start, end);
+                    start = end;
+                    return line;
+                }
+                // Keep the unfinished line at the front of the buffer and read more after it
+                int pending = end - start;
+                if (start > 0) {
+                    System.arraycopy(bytes, start, bytes, 0, pending);
+                    scan = pending;
+                    start = 0;
+                    end = pending;
+                }
+                if (end == bytes.length) {
+                    if (bytes.length >= MAX_LINE) throw new IOException("Line longer than " + (MAX_LINE >> 20) + " MB");
+                    bytes = Arrays.copyOf(bytes, Math.min(MAX_LINE, bytes.length * 2));
+                    buffer = ByteBuffer.wrap(bytes);
+                }
+                buffer.limit(bytes.length).position(end);
+                int read = channel.read(buffer);
+                if (read < 0) eof = true;
+                else end += read;
+            }
+        }
+
+        private String decode(int from, int to) {
+            if (to > from && bytes[to - 1] == '\r') to--;
+            return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * A lazy whole-number range value ("1 to 10 by 2"). Only its bounds and step are stored; elements are computed
+     * on demand, so a range of a billion numbers costs the same as a range of ten.
+     */
+    public static class Range {
+        final long start;
+        final long end;
+        final long step;
+        final long size;
+
+        Range(long start, long end, long step) {
+            if (step == 0) throw new RuntimeException("Range step cannot be 0");
+            this.start = start;
+            this.end = end;
+            this.step = step;
+            if (step > 0 ? start > end : start < end) {
+                this.size = 0;
+            } else {
+                // (end - start) / step + 1, worked out exactly since end - start can overflow a long
+                BigInteger count = BigInteger.valueOf(end).subtract(BigInteger.valueOf(start)).divide(BigInteger.valueOf(step)).add(BigInteger.ONE);
+                this.size = count.bitLength() < 64 ? count.longValue() : Long.MAX_VALUE;
+            }
+        }
+
+        /**
+         * Builds a range from evaluated bounds; without a step it counts up, or down when the end is below the start.
+         * @param step The step, or null for the default of 1 or -1.
+         */
+        static Range of(Object start, Object end, Object step) {
+            if (!(start instanceof Long) || !(end instanceof Long) || (step != null && !(step instanceof Long))) {
+                throw new RuntimeException("Range bounds and step must be whole numbers");
+            }
+            long from = (Long) start;
+            long to = (Long) end;
+            return new Range(from, to, step != null ? (Long) step : from <= to ? 1 : -1);
+        }
+
+        /**
+         * The element at a 1-based position, like list:index.
+         */
+        long get(long position) {
+            if (position < 1 || position > size) throw new RuntimeException("Index out of bounds");
+            return start + (position - 1) * step;
+        }
+
+        void appendTo(StringBuilder sb) {
+            sb.append(start).append(" to ").append(end);
+            if (step != (start <= end ? 1 : -1)) sb.append(" by ").append(step);
+        }
+    }
+
+    /**
+     * A key-value map value ("pantry") keyed by strings or numbers.
+     * Whole-number keys live in an open-addressing table of primitive longs, string keys in one of strings with their
+     * hash codes alongside, and fractional keys in a long table keyed by their bits, so lookups are O(1) without boxing keys.
+     * Whole numbers past the long range (BigIntegers) go in a plain HashMap. Whole doubles such as 2.0 are the same key
+     * as 2, and 1e20 the same as 100000000000000000000. Iteration is in no particular order.
+     */
+    public static class Pantry {
+        private final LongTable wholeKeys = new LongTable();
+        private final LongTable fractionKeys = new LongTable();
+        private final StringTable stringKeys = new StringTable();
+        private final Map<BigInteger, Object> bigKeys = new HashMap<>();
+
+        int size() {
+            return wholeKeys.size + fractionKeys.size + stringKeys.size + bigKeys.size();
+        }
+
+        boolean has(Object key) {
+            if (key instanceof String) return stringKeys.find((String) key) >= 0;
+            if (key instanceof Long) return wholeKeys.find((Long) key) >= 0;
+            if (isWholeDouble(key)) return wholeKeys.find((long) (double) (Double) key) >= 0;
+            if (isBig(key)) return bigKeys.containsKey(big(key));
+            if (key instanceof Double) return fractionKeys.find(Double.doubleToLongBits((Double) key)) >= 0;
+            return false;
+        }
+
+        /**
+         * Looks up a key.
+         * @throws RuntimeException If the key is not in the pantry.
+         */
+        Object get(Object key) {
+            int slot;
+            if (key instanceof String) {
+                slot = stringKeys.find((String) key);
+                if (slot >= 0) return stringKeys.values[slot];
+            } else if (key instanceof Long) {
+                slot = wholeKeys.find((Long) key);
+                if (slot >= 0) return wholeKeys.values[slot];
+            } else if (isWholeDouble(key)) {
+                slot = wholeKeys.find((long) (double) (Double) key);
+                if (slot >= 0) return wholeKeys.values[slot];
+            } else if (isBig(key)) {
+                BigInteger big = big(key);
+                if (bigKeys.containsKey(big)) return bigKeys.get(big);
+            } else if (key instanceof Double) {
+                slot = fractionKeys.find(Double.doubleToLongBits((Double) key));
+                if (slot >= 0) return fractionKeys.values[slot];
+            }
+            throw new RuntimeException("Nothing stored at " + key + " in pantry");
+        }
+
+        void put(Object key, Object value) {
+            if (key instanceof String) stringKeys.put((String) key, value);
+            else if (key instanceof Long) wholeKeys.put((Long) key, value);
+            else if (isWholeDouble(key)) wholeKeys.put((long) (double) (Double) key, value);
+            else if (isBig(key)) bigKeys.put(big(key), value);
+            else if (key instanceof Double) fractionKeys.put(Double.doubleToLongBits((Double) key), value);
+            else throw new RuntimeException("Pantry keys must be strings or numbers");
+        }
+
+        boolean remove(Object key) {
+            if (key instanceof String) return stringKeys.remove((String) key);
+            if (key instanceof Long) return wholeKeys.remove((Long) key);
+            if (isWholeDouble(key)) return wholeKeys.remove((long) (double) (Double) key);
+            if (isBig(key)) return bigKeys.remove(big(key)) != null;
+            if (key instanceof Double) return fractionKeys.remove(Double.doubleToLongBits((Double) key));
+            return false;
+        }
+
+        /**
+         * Returns a snapshot of the keys, so the pantry can be changed while they are looped over.
+         */
+        List<Object> keys() {
+            List<Object> keys = new ArrayList<>(size());
+            for (int i = 0; i < wholeKeys.keys.length; i++) {
+                if (wholeKeys.used[i]) keys.add(wholeKeys.keys[i]);
+            }
+            for (int i = 0; i < fractionKeys.keys.length; i++) {
+                if (fractionKeys.used[i]) keys.add(Double.longBitsToDouble(fractionKeys.keys[i]));
+            }
+            for (int i = 0; i < stringKeys.keys.length; i++) {
+                if (stringKeys.keys[i] != null) keys.add(stringKeys.keys[i]);
+            }
+            keys.addAll(bigKeys.keySet());
+            return keys;
+        }
+
+        private static boolean isWholeDouble(Object key) {
+            if (!(key instanceof Double)) return false;
+            double d = (Double) key;
+            return d == (long) d && Math.abs(d) < 0x1p63;
+        }
+
+        /**
+         * True for whole numbers outside the long range: BigIntegers and whole doubles of 2^63 or more.
+         */
+        private static boolean isBig(Object key) {
+            if (key instanceof BigInteger) return true;
+            if (!(key instanceof Double)) return false;
+            double d = (Double) key;
+            return !Double.isInfinite(d) && d == Math.rint(d) && Math.abs(d) >= 0x1p63;
+        }
+
+        private static BigInteger big(Object key) {
+            return key instanceof BigInteger ? (BigInteger) key : new BigDecimal((Double) key).toBigInteger();
+        }
+
+        /**
+         * Spreads a hash over the table with Fibonacci hashing.
+         */
+        private static int slotFor(long hash, int shift) {
+            return (int) ((hash * 0x9E3779B97F4A7C15L) >>> shift);
+        }
+
+        /**
+         * Linear-probing table with primitive long keys. Removal shifts later entries back instead of leaving tombstones.
+         */
+        private static class LongTable {
+            long[] keys = new long[8];
+            Object[] values = new Object[8];
+            boolean[] used = new boolean[8];
+            int shift = 64 - 3;
+            int size;
+
+            int find(long key) {
+                int mask = keys.length - 1;
+                for (int i = slotFor(key, shift); used[i]; i = (i + 1) & mask) {
+                    if (keys[i] == key) return i;
+                }
+                return -1;
+            }
+
+            void put(long key, Object value) {
+                int mask = keys.length - 1;
+                int i = slotFor(key, shift);
+                while (used[i]) {
+                    if (keys[i] == key) {
+                        values[i] = value;
+                        return;
+                    }
+                    i = (i + 1) & mask;
+                }
+                used[i] = true;
+                keys[i] = key;
+                values[i] = value;
+                if (++size * 4 > keys.length * 3) grow();
+            }
+
+            boolean remove(long key) {
+                int i = find(key);
+                if (i < 0) return false;
+                int mask = keys.length - 1;
+                for (int j = (i + 1) & mask; used[j]; j = (j + 1) & mask) {
+                    int home = slotFor(keys[j], shift);
+                    // move j back into the hole unless its home lies cyclically in (i, j]
+                    if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                        keys[i] = keys[j];
+                        values[i] = values[j];
+                        i = j;
+                    }
+                }
+                used[i] = false;
+                values[i] = null;
+                size--;
+                return true;
+            }
+
+            private void grow() {
+                long[] oldKeys = keys;
+                Object[] oldValues = values;
+                boolean[] oldUsed = used;
+                keys = new long[oldKeys.length * 2];
+                values = new Object[oldKeys.length * 2];
+                used = new boolean[oldKeys.length * 2];
+                shift--;
+                size = 0;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldUsed[i]) put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        /**
+         * Linear-probing table with string keys; a null key marks a free slot and hash codes are kept to skip most equals calls.
+         */
+        private static class StringTable {
+            String[] keys = new String[8];
+            int[] hashes = new int[8];
+            Object[] values = new Object[8];
+            int shift = 64 - 3;
+            int size;
+
+            int find(String key) {
+                int hash = key.hashCode();
+                int mask = keys.length - 1;
+                for (int i = slotFor(hash, shift); keys[i] != null; i = (i + 1) & mask) {
+                    if (hashes[i] == hash && keys[i].equals(key)) return i;
+                }
+                return -1;
+            }
+
+            void put(String key, Object value) {
+                int hash = key.hashCode();
+                int mask = keys.length - 1;
+                int i = slotFor(hash, shift);
+                while (keys[i] != null) {
+                    if (hashes[i] == hash && keys[i].equals(key)) {
+                        values[i] = value;
+                        return;
+                    }
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                hashes[i] = hash;
+                values[i] = value;
+                if (++size * 4 > keys.length * 3) grow();
+            }
+
+            boolean remove(String key) {
+                int i = find(key);
+                if (i < 0) return false;
+                int mask = keys.length - 1;
+                for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+                    int home = slotFor(hashes[j], shift);
+                    if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                        keys[i] = keys[j];
+                        hashes[i] = hashes[j];
+                        values[i] = values[j];
+                        i = j;
+                    }
+                }
+                keys[i] = null;
+                values[i] = null;
+                size--;
+                return true;
+            }
+
+            private void grow() {
+                String[] oldKeys = keys;
+                int[] oldHashes = hashes;
+                Object[] oldValues = values;
+                keys = new String[oldKeys.length * 2];
+                hashes = new int[oldKeys.length * 2];
+                values = new Object[oldKeys.length * 2];
+                shift--;
+                size = 0;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != null) put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Element-wise arithmetic and reductions over numeric lists.
+     * Lists are unboxed into primitive long or double arrays and processed in plain counted loops that the JIT
+     * can vectorize; whole-number lists use overflow-checked math and fall back element by element when it overflows.
+     */
+    public static class Vectors {
+
+        /**
+         * Whether + - * / should work element-wise: a list with a number or with another list.
+         */
+        static boolean applies(Object left, Object right) {
+            return (left instanceof List && (right instanceof List || Numbers.isNumber(right)))
+                    || (right instanceof List && Numbers.isNumber(left));
+        }
+
+        /**
+         * Applies an operator element-wise, broadcasting a number across a list.
+         * @param op One of + - * /.
+         * @throws RuntimeException If the lists differ in length or hold something other than numbers.
+         */
+        static List<Object> apply(char op, Object left, Object right) {
+            int length = left instanceof List ? asList(left).size() : asList(right).size();
+            if (left instanceof List && right instanceof List && asList(right).size() != length) {
+                throw new RuntimeException("Lists must be the same length, got " + length + " and " + asList(right).size());
+            }
+            boolean whole = isWhole(left) && isWhole(right);
+            if (whole && op != '/') {
+                long[] a = toLongs(left, length);
+                long[] b = toLongs(right, length);
+                long[] result = new long[length];
+                if (exactLongs(op, a, b, result)) return box(result);
+            } else if (!whole && !hasBig(left) && !hasBig(right)) {
+                double[] a = toDoubles(left, length);
+                double[] b = toDoubles(right, length);
+                double[] result = new double[length];
+                doubles(op, a, b, result);
+                return box(result);
+            }
+            // whole-number division, overflow or BigInteger elements: element by element like scalar math
+            List<Object> result = new ArrayList<>(length);
+            for (int i = 0; i < length; i++) {
+                Object l = element(left, i);
+                Object r = element(right, i);
+                switch (op) {
+                    case '+': result.add(Numbers.add(l, r)); break;
+                    case '-': result.add(Numbers.subtract(l, r)); break;
+                    case '*': result.add(Numbers.multiply(l, r)); break;
+                    default: result.add(Numbers.divide(l, r)); break;
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Runs a whole-number loop, accumulating an overflow flag instead of branching per element.
+         * @return false if any element overflowed, in which case the result must be discarded.
+         */
+        private static boolean exactLongs(char op, long[] a, long[] b, long[] result) {
+            long overflow = 0;
+            switch (op) {
+                case '+':
+                    for (int i = 0; i < result.length; i++) {
+                        long sum = a[i] + b[i];
+                        overflow |= (a[i] ^ sum) & (b[i] ^ sum);
+                        result[i] = sum;
+                    }
+                    return overflow >= 0;
+                case '-':
+                    for (int i = 0; i < result.length; i++) {
+                        long difference = a[i] - b[i];
+                        overflow |= (a[i] ^ b[i]) & (a[i] ^ difference);
+                        result[i] = difference;
+                    }
+                    return overflow >= 0;
+                default:
+                    for (int i = 0; i < result.length; i++) {
+                        long product = a[i] * b[i];
+                        // the high half of an exact product is just the sign extension of the low half
+                        overflow |= Math.multiplyHigh(a[i], b[i]) ^ (product >> 63);
+                        result[i] = product;
+                    }
+                    return overflow == 0;
+            }
+        }
+
+        private static void doubles(char op, double[] a, double[] b, double[] result) {
+            switch (op) {
+                case '+': for (int i = 0; i < result.length; i++) result[i] = a[i] + b[i]; break;
+                case '-': for (int i = 0; i < result.length; i++) result[i] = a[i] - b[i]; break;
+                case '*': for (int i = 0; i < result.length; i++) result[i] = a[i] * b[i]; break;
+                default: for (int i = 0; i < result.length; i++) result[i] = a[i] / b[i]; break;
+            }
+        }
+
+        static boolean isReduction(String name) {
+            return name.equals("sum") || name.equals("min") || name.equals("max") || name.equals("mean");
+        }
+
+        /**
+         * Reduces a numeric list with sum, min, max or mean.
+         */
+        static Object reduce(String name, Object value) {
+            if (!(value instanceof List)) throw new RuntimeException("Expected a list after '" + name + " of'");
+            List<Object> list = asList(value);
+            if (list.isEmpty()) {
+                if (name.equals("sum")) return 0L;
+                throw new RuntimeException("Cannot take the " + name + " of an empty list");
+            }
+            Object sum;
+            if (isWhole(list)) {
+                long[] a = toLongs(list, list.size());
+                switch (name) {
+                    case "min": {
+                        long min = a[0];
+                        for (long x : a) min = Math.min(min, x);
+                        return min;
+                    }
+                    case "max": {
+                        long max = a[0];
+                        for (long x : a) max = Math.max(max, x);
+                        return max;
+                    }
+                    default: {
+                        long total = 0;
+                        long overflow = 0;
+                        for (long x : a) {
+                            long next = total + x;
+                            overflow |= (total ^ next) & (x ^ next);
+                            total = next;
+                        }
+                        sum = overflow >= 0 ? (Object) total : sumOneByOne(list);
+                    }
+                }
+            } else if (!hasBig(list)) {
+                double[] a = toDoubles(list, list.size());
+                switch (name) {
+                    case "min": {
+                        double min = a[0];
+                        for (double x : a) min = Math.min(min, x);
+                        return min;
+                    }
+                    case "max": {
+                        double max = a[0];
+                        for (double x : a) max = Math.max(max, x);
+                        return max;
+                    }
+                    default: {
+                        double total = 0;
+                        for (double x : a) total += x;
+                        sum = total;
+                    }
+                }
+            } else {
+                Object best = list.get(0);
+                for (Object x : list) {
+                    if (name.equals("min") && Numbers.compare(x, best, "OPERATOR:LESS")) best = x;
+                    if (name.equals("max") && Numbers.compare(x, best, "OPERATOR:GREATER")) best = x;
+                }
+                if (name.equals("min") || name.equals("max")) return best;
+                sum = sumOneByOne(list);
+            }
+            return name.equals("mean") ? Numbers.divide(sum, (long) list.size()) : sum;
+        }
+
+        private static Object sumOneByOne(List<Object> list) {
+            Object total = 0L;
+            for (Object x : list) {
+                total = Numbers.add(total, x);
+            }
+            return total;
+        }
+
+        private static boolean isWhole(Object value) {
+            if (value instanceof Long) return true;
+            if (!(value instanceof List)) return false;
+            for (Object x : asList(value)) {
+                if (!(x instanceof Long)) {
+                    if (!Numbers.isNumber(x)) throw new RuntimeException("List must hold only numbers, found " + x);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean hasBig(Object value) {
+            if (value instanceof BigInteger) return true;
+            if (!(value instanceof List)) return false;
+            for (Object x : asList(value)) {
+                if (x instanceof BigInteger) return true;
+                if (!Numbers.isNumber(x)) throw new RuntimeException("List must hold only numbers, found " + x);
+            }
+            return false;
+        }
+
+        private static Object element(Object value, int i) {
+            return value instanceof List ? asList(value).get(i) : value;
+        }
+
+        private static long[] toLongs(Object value, int length) {
+            long[] result = new long[length];
+            if (value instanceof List) {
+                List<Object> list = asList(value);
+                for (int i = 0; i < length; i++) result[i] = (Long) list.get(i);
+            } else {
+                Arrays.fill(result, (Long) value);
+            }
+            return result;
+        }
+
+        private static double[] toDoubles(Object value, int length) {
+            double[] result = new double[length];
+            if (value instanceof List) {
+                List<Object> list = asList(value);
+                for (int i = 0; i < length; i++) result[i] = ((Number) list.get(i)).doubleValue();
+            } else {
+                Arrays.fill(result, ((Number) value).doubleValue());
+            }
+            return result;
+        }
+
+        private static List<Object> box(long[] values) {
+            List<Object> list = new ArrayList<>(values.length);
+            for (long x : values) list.add(x);
+            return list;
+        }
+
+        private static List<Object> box(double[] values) {
+            List<Object> list = new ArrayList<>(values.length);
+            for (double x : values) list.add(x);
+            return list;
         }
     }
 
@@ -56,6 +1468,75 @@ public class chopped {
         private String TokenValue;
         private String TokenType;
 
+        /**
+         * For operator and index tokens, a process-wide id that the running Parser keys its type feedback by, or -1.
+         * The feedback itself lives in the Parser, because lexed tokens are shared between interpreters and one run's
+         * operand types say nothing about another's.
+         */
+        int site = -1;
+
+        private static final AtomicInteger SITES = new AtomicInteger();
+
+        /** Type feedback states: the operand types a site has seen so far in the current run. */
+        static final int UNSEEN = 0;
+        static final int INTEGERS = 1;
+        static final int DOUBLES = 2;
+        static final int STRINGS = 3;
+        static final int LIST_NUMBER = 4;
+        static final int GENERIC = 5;
+
+        /**
+         * The arithmetic operator this token stands for, worked out once at lex time so evaluation dispatches on an int
+         * rather than comparing TokenType strings.
+         */
+        int opcode = NONE;
+
+        static final int NONE = 0;
+        static final int ADD = 1;
+        static final int SUBTRACT = 2;
+        static final int MULTIPLY = 3;
+        static final int DIVIDE = 4;
+
+        private static int opcodeOf(String tokenType) {
+            switch (tokenType) {
+                case "OPERATOR:PLUS": return ADD;
+                case "OPERATOR:MINUS": return SUBTRACT;
+                case "OPERATOR:MULTIPLY": return MULTIPLY;
+                case "OPERATOR:DIVIDE": return DIVIDE;
+                default: return NONE;
+            }
+        }
+
+        /**
+         * For TEMPLATE tokens, the pieces of the string in order: literal text as String and each {expression} as its tokens.
+         * The TokenValue keeps the raw text, so a template read back from a snapshot is split again here.
+         */
+        Object[] segments;
+
+        /**
+         * Constructs a Token with an already known type, e.g. when reading a saved state snapshot.
+         * @param tokenType The token type.
+         * @param tokenValue The token value.
+         */
+        Token(String tokenType, String tokenValue) {
+            this.TokenType = tokenType;
+            this.TokenValue = tokenValue;
+            this.opcode = opcodeOf(tokenType);
+            if (opcode != NONE || tokenValue.equals(":")) this.site = SITES.getAndIncrement();
+            if (tokenType.equals("TEMPLATE")) this.segments = Lexer.template(tokenValue);
+        }
+
+        /**
+         * Constructs a TEMPLATE token from segments the lexer has already split, so the text is scanned only once.
+         * @param text The raw string contents, kept as the token value.
+         * @param segments The result of Lexer.template for that text.
+         */
+        Token(String text, Object[] segments) {
+            this.TokenType = "TEMPLATE";
+            this.TokenValue = text;
+            this.segments = segments;
+        }
+
         /**
          * Constructs a Token from the given text, determining its type.
          * @param text The string representation of the token.
@@ -238,19 +1719,27 @@ public class chopped {
                     this.TokenValue = text;
                     break;
             }
+            this.opcode = opcodeOf(TokenType);
+            if (opcode != NONE || TokenValue.equals(":")) this.site = SITES.getAndIncrement();
         }
 
         /**
          * Helper method to check if a string represents a numeric value.
+         * Digits with at most one decimal point between them, e.g. 12 or 1.25.
          * @param str The string to check.
          * @return true if the string is numeric, false otherwise.
          */
         private static boolean isNumeric(String str) {
             if (str == null || str.isEmpty())
                 return false;
-            for (char c : str.toCharArray()) {
-                if (!Character.isDigit(c))
+            boolean seenPoint = false;
+            for (int i = 0; i < str.length(); i++) {
+                char c = str.charAt(i);
+                if (c == '.' && !seenPoint && i > 0 && i < str.length() - 1) {
+                    seenPoint = true;
+                } else if (!Character.isDigit(c)) {
                     return false;
+                }
             }
             return true;
         }
@@ -270,11 +1759,12 @@ public class chopped {
      */
     public static class Lexer {
         /**
-         * Lexes the input text into tokens and passes them to the Parser.
+         * Lexes the input text into tokens for the Parser.
          * Processes the input character by character, not relying on spaces.
          * @param text The input string to be lexed.
+         * @return The tokens of the input.
          */
-        private static void lexar(String text) {
+        private static List<Token> lexar(String text) {
             List<Token> tokenArray = new ArrayList<>();
             int i = 0;
             while (i < text.length()) {
@@ -286,6 +1776,15 @@ public class chopped {
                         num.append(text.charAt(i));
                         i++;
                     }
+                    // A period followed by a digit is a decimal point, otherwise it is punctuation
+                    if (i + 1 < text.length() && text.charAt(i) == '.' && Character.isDigit(text.charAt(i + 1))) {
+                        num.append('.');
+                        i++;
+                        while (i < text.length() && Character.isDigit(text.charAt(i))) {
+                            num.append(text.charAt(i));
+                            i++;
+                        }
+                    }
                     tokenArray.add(new Token(num.toString()));
                 } else if (Character.isLetter(c)) {
                     // Parse keyword or identifier
@@ -316,7 +1815,19 @@ public class chopped {
                         i++;
                     }
                     if (i < text.length()) i++; // skip closing "
-                    tokenArray.add(new Token('"' + str.toString() + '"'));
+                    if (str.indexOf("{") < 0) {
+                        tokenArray.add(new Token('"' + str.toString() + '"'));
+                    } else {
+                        // Interpolated string: split once here so running it never re-scans the text
+                        Object[] segments = template(str.toString());
+                        if (segments.length == 0) {
+                            tokenArray.add(new Token("STRING", ""));
+                        } else if (segments.length == 1 && segments[0] instanceof String) {
+                            tokenArray.add(new Token("STRING", (String) segments[0]));
+                        } else {
+                            tokenArray.add(new Token(str.toString(), segments));
+                        }
+                    }
                 } else if (c == '=' && i + 1 < text.length() && text.charAt(i + 1) == '=') {
                     tokenArray.add(new Token("=="));
                     i += 2;
@@ -337,7 +1848,79 @@ public class chopped {
                     i++;
                 }
             }
-            Parser.parse(tokenArray);
+            return tokenArray;
+        }
+
+        /**
+         * Splits the text of an interpolated string into literal text and lexed {expression} segments.
+         * {{ and }} stand for literal braces, and a { without a matching } (or with nothing inside) is kept as text.
+         * @param text The string contents, without quotes.
+         * @return The segments in order: String for literal text, List of Token for an expression.
+         */
+        static Object[] template(String text) {
+            List<Object> segments = new ArrayList<>();
+            StringBuilder literal = new StringBuilder();
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if ((c == '{' || c == '}') && i + 1 < text.length() && text.charAt(i + 1) == c) {
+                    literal.append(c);
+                    i += 2;
+                    continue;
+                }
+                // Only a { closed before the next { opens starts an expression
+                int close = c == '{' ? text.indexOf('}', i + 1) : -1;
+                int nextOpen = text.indexOf('{', i + 1);
+                if (nextOpen >= 0 && nextOpen < close) close = -1;
+                List<Token> expression = close < 0 ? Collections.emptyList() : lexar(text.substring(i + 1, close));
+                if (expression.isEmpty()) {
+                    literal.append(c);
+                    i++;
+                    continue;
+                }
+                if (literal.length() > 0) {
+                    segments.add(literal.toString());
+                    literal.setLength(0);
+                }
+                segments.add(expression);
+                i = close + 1;
+            }
+            if (literal.length() > 0) segments.add(literal.toString());
+            return segments.toArray();
+        }
+
+        /**
+         * Reads and lexes a script file, reusing the tokens from an earlier read while the file is unchanged.
+         * Tokens are never modified after lexing, so cached lists are shared between interpreters.
+         * @param file The script to read.
+         * @return The tokens of the file.
+         * @throws IOException If the file cannot be read.
+         */
+        private static List<Token> lexFile(Path file) throws IOException {
+            Path key = file.toAbsolutePath().normalize();
+            long modified = Files.getLastModifiedTime(key).toMillis();
+            long size = Files.size(key);
+            CachedScript cached = scriptCache.get(key);
+            if (cached != null && cached.modified == modified && cached.size == size) {
+                return cached.tokens;
+            }
+            List<Token> tokenArray = Collections.unmodifiableList(lexar(new String(Files.readAllBytes(key))));
+            scriptCache.put(key, new CachedScript(modified, size, tokenArray));
+            return tokenArray;
+        }
+
+        private static final Map<Path, CachedScript> scriptCache = new ConcurrentHashMap<>();
+
+        private static class CachedScript {
+            final long modified;
+            final long size;
+            final List<Token> tokens;
+
+            CachedScript(long modified, long size, List<Token> tokens) {
+                this.modified = modified;
+                this.size = size;
+                this.tokens = tokens;
+            }
         }
 
         // This class represents a token, which is a piece of text that has a specific
@@ -345,16 +1928,57 @@ public class chopped {
         // identifier, or a literal value.
 
     }
+
+    /**
+     * Views a list value with its element type. Lists are stored as plain Objects, so this is the one place the
+     * unchecked cast happens.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> List<T> asList(Object value) {
+        return (List<T>) value;
+    }
+
     /**
      * The Parser class is responsible for parsing the list of tokens into executable code.
      * It supports arithmetic expressions and if statements with conditions.
      */
     private static class Parser {
-        private static List<Token> tokens;
-        private static int pos;
-        private static Map<String, Object> variables = new HashMap<>();
-        private static Map<String, Function> functions = new HashMap<>();
-        private static Scanner inputScanner = new Scanner(System.in);
+        private List<Token> tokens;
+        private int pos;
+        private Map<String, Object> variables = new HashMap<>();
+        private Map<String, Function> functions = new HashMap<>();
+        private final Limits limits;
+        private final PrintStream out;
+        private final Scanner input;
+        private final Path baseDir;
+        private final StringBuilder line = new StringBuilder();
+        private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private ByteBuffer lineBytes = ByteBuffer.allocate(256);
+        private Map<Path, List<Token>> prepared = Collections.emptyMap();
+        /** The files whose statements are running, outermost first, so a chopped statement can spot a cycle. */
+        private final List<Path> including = new ArrayList<>();
+        private long steps;
+        private long deadline;
+        private int callDepth;
+        private boolean failed;
+
+        /** This run's type feedback, indexed by {@link Token#site}; grown as higher sites are reached. */
+        private byte[] feedback = new byte[256];
+
+        /**
+         * Creates an interpreter with its own variables, functions and budget counters.
+         * @param limits The execution budgets for each run.
+         * @param out Where say and expression results are printed.
+         * @param in Where ask reads its answers from.
+         * @param baseDir The directory that relative chopped includes are resolved against.
+         */
+        Parser(Limits limits, PrintStream out, InputStream in, Path baseDir) {
+            this.limits = limits;
+            this.out = out;
+            this.input = new Scanner(in);
+            this.baseDir = baseDir;
+        }
 
         private static class Function {
             String name;
@@ -362,6 +1986,7 @@ public class chopped {
             Map<String, Object> defaults;
             List<Token> body;
             List<Token> returnTokens;
+            private Snapshot.Record snapshot; // set while the definition is still only in a loaded state snapshot
 
             Function(String name, List<String> params, Map<String, Object> defaults, List<Token> body, List<Token> returnTokens) {
                 this.name = name;
@@ -370,10 +1995,564 @@ public class chopped {
                 this.body = body;
                 this.returnTokens = returnTokens;
             }
+
+            Function(String name, Snapshot.Record snapshot) {
+                this.name = name;
+                this.snapshot = snapshot;
+            }
+
+            /**
+             * Decodes the definition from its snapshot the first time it is needed.
+             */
+            Function loaded() {
+                if (snapshot != null) {
+                    Snapshot.readFunction(this, snapshot);
+                    snapshot = null;
+                }
+                return this;
+            }
+        }
+
+        /**
+         * Reads a variable, decoding it first if it is still only in a loaded state snapshot.
+         */
+        private Object lookup(String name) {
+            Object value = variables.get(name);
+            if (value instanceof Snapshot.Lazy) {
+                value = ((Snapshot.Lazy) value).load();
+                variables.put(name, value);
+            }
+            return value;
+        }
+
+        /**
+         * Parses a save statement: save state to "file".
+         */
+        private void parseSave() {
+            pos++; // consume save
+            if (!isWord(pos, "state")) throw new RuntimeException("Expected 'state' after 'save'");
+            pos++; // consume state
+            if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("KEYWORD:TO")) throw new RuntimeException("Expected 'to' after 'save state'");
+            pos++; // consume to
+            Object fileName = parseExpr(false);
+            if (!(fileName instanceof String)) throw new RuntimeException("Expected file name after 'save state to'");
+            saveState(baseDir.resolve((String) fileName));
+        }
+
+        /**
+         * Parses a load statement: load state from "file".
+         */
+        private void parseLoad() {
+            pos++; // consume load
+            if (!isWord(pos, "state")) throw new RuntimeException("Expected 'state' after 'load'");
+            pos++; // consume state
+            if (!isWord(pos, "from")) throw new RuntimeException("Expected 'from' after 'load state'");
+            pos++; // consume from
+            Object fileName = parseExpr(false);
+            if (!(fileName instanceof String)) throw new RuntimeException("Expected file name after 'load state from'");
+            loadState(baseDir.resolve((String) fileName));
+        }
+
+        /**
+         * Writes the variables and functions to a snapshot file.
+         * @param file The snapshot file, replaced atomically.
+         */
+        void saveState(Path file) {
+            try {
+                Snapshot.save(file, variables, functions);
+            } catch (IOException e) {
+                throw new RuntimeException("Error saving state: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Adds the variables and functions of a snapshot file, replacing any with the same names.
+         * Values and function bodies are decoded only when first used.
+         * @param file The snapshot file.
+         */
+        void loadState(Path file) {
+            try {
+                Snapshot.load(file, variables, functions);
+            } catch (IOException e) {
+                throw new RuntimeException("Error loading state: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Compact binary snapshots of interpreter state. The file holds the records, then an index of variable and
+         * function names with their record offsets, then the index's own offset. Loading maps the file and reads only
+         * the index; each record is decoded on first use, so a restart costs what the session actually touches.
+         * Offsets are longs and the file is mapped in 1 GB windows, so snapshots and single records may pass 2 GB.
+         */
+        private static class Snapshot {
+            private static final int MAGIC = 0x43484F50; // "CHOP"
+            private static final int VERSION = 2; // 2: long offsets and the index after the records
+            private static final int HEADER = 8; // magic and version
+            private static final int WINDOW_BITS = 30;
+
+            private static final byte NOTHING = 0;
+            private static final byte WHOLE = 1;
+            private static final byte FRACTION = 2;
+            private static final byte BIG_WHOLE = 3;
+            private static final byte TEXT = 4;
+            private static final byte LIST = 5;
+            private static final byte PANTRY = 6;
+            private static final byte RANGE = 7;
+
+            /**
+             * A variable whose value is still in a mapped snapshot.
+             * The value is decoded once and kept, so every variables map holding this placeholder, such as the
+             * per-call copies inside cooked functions, sees the same list or pantry.
+             */
+            static class Lazy {
+                private final Record record;
+                private Object value;
+                private boolean decoded;
+
+                Lazy(Record record) {
+                    this.record = record;
+                }
+
+                Object load() {
+                    if (!decoded) {
+                        value = readValue(record.duplicate());
+                        decoded = true;
+                    }
+                    return value;
+                }
+            }
+
+            /**
+             * A stretch of a mapped snapshot, read at a long position across the file's windows.
+             * Every read is checked against the end of the stretch, so a truncated or corrupt snapshot stops with
+             * a clean error instead of reading into the next record or allocating whatever size it claims.
+             */
+            static class Record {
+                private final ByteBuffer[] windows;
+                private long position;
+                private final long end;
+
+                Record(ByteBuffer[] windows, long position, long end) {
+                    this.windows = windows;
+                    this.position = position;
+                    this.end = end;
+                }
+
+                Record duplicate() {
+                    return new Record(windows, position, end);
+                }
+
+                Record slice(long from, long to) {
+                    if (from < position || to < from || to > end) throw corrupt("record outside the file");
+                    return new Record(windows, from, to);
+                }
+
+                long remaining() {
+                    return end - position;
+                }
+
+                byte get() {
+                    need(1);
+                    byte b = windows[(int) (position >>> WINDOW_BITS)].get(offset(position));
+                    position++;
+                    return b;
+                }
+
+                int getInt() {
+                    need(4);
+                    int at = offset(position);
+                    ByteBuffer window = windows[(int) (position >>> WINDOW_BITS)];
+                    if (at + 4 <= window.limit()) {
+                        position += 4;
+                        return window.getInt(at);
+                    }
+                    return (get() & 0xFF) << 24 | (get() & 0xFF) << 16 | (get() & 0xFF) << 8 | (get() & 0xFF);
+                }
+
+                long getLong() {
+                    return (long) getInt() << 32 | (getInt() & 0xFFFFFFFFL);
+                }
+
+                double getDouble() {
+                    return Double.longBitsToDouble(getLong());
+                }
+
+                void get(byte[] into, int from, int length) {
+                    need(length);
+                    while (length > 0) {
+                        ByteBuffer window = windows[(int) (position >>> WINDOW_BITS)];
+                        int at = offset(position);
+                        int n = Math.min(length, window.limit() - at);
+                        window.get(at, into, from, n);
+                        position += n;
+                        from += n;
+                        length -= n;
+                    }
+                }
+
+                /**
+                 * Reads a length or count, which can be no larger than the bytes left since every item takes at least one.
+                 */
+                int getSize() {
+                    int size = getInt();
+                    if (size < 0 || size > remaining()) throw corrupt("size " + size + " with " + remaining() + " bytes left");
+                    return size;
+                }
+
+                void copyTo(OutputStream out) throws IOException {
+                    Record from = duplicate();
+                    byte[] chunk = new byte[(int) Math.min(from.remaining(), 64 * 1024)];
+                    while (from.remaining() > 0) {
+                        int n = (int) Math.min(from.remaining(), chunk.length);
+                        from.get(chunk, 0, n);
+                        out.write(chunk, 0, n);
+                    }
+                }
+
+                private void need(int bytes) {
+                    if (bytes > end - position) throw corrupt("record ends early");
+                }
+
+                private static int offset(long position) {
+                    return (int) (position & ((1 << WINDOW_BITS) - 1));
+                }
+            }
+
+            private static RuntimeException corrupt(String detail) {
+                return new RuntimeException("Corrupt state snapshot: " + detail);
+            }
+
+            /**
+             * Counts the bytes written so far, since DataOutputStream.size() stops at 2 GB.
+             */
+            private static class CountingOutputStream extends FilterOutputStream {
+                long count;
+
+                CountingOutputStream(OutputStream out) {
+                    super(out);
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    count++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    count += len;
+                }
+            }
+
+            static void save(Path file, Map<String, Object> variables, Map<String, Function> functions) throws IOException {
+                Path target = file.toAbsolutePath();
+                Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+                try {
+                    // createTempFile makes an owner-only file; keep the permissions of the snapshot being replaced, or
+                    // give a new one the usual rw-r--r--
+                    if (target.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                        Files.setPosixFilePermissions(temp, Files.exists(target) ? Files.getPosixFilePermissions(target) : PosixFilePermissions.fromString("rw-r--r--"));
+                    }
+                    CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+                    try (DataOutputStream data = new DataOutputStream(counter)) {
+                        data.writeInt(MAGIC);
+                        data.writeInt(VERSION);
+                        long[] offsets = new long[variables.size() + functions.size()];
+                        int i = 0;
+                        // Entries never used since loading are copied as raw record bytes instead of decoded and encoded again
+                        for (Object value : variables.values()) {
+                            offsets[i++] = counter.count;
+                            if (value instanceof Lazy && !((Lazy) value).decoded) {
+                                ((Lazy) value).record.copyTo(data);
+                            } else {
+                                writeValue(data, value instanceof Lazy ? ((Lazy) value).load() : value);
+                            }
+                        }
+                        for (Function function : functions.values()) {
+                            offsets[i++] = counter.count;
+                            if (function.snapshot != null) {
+                                function.snapshot.copyTo(data);
+                            } else {
+                                writeFunction(data, function);
+                            }
+                        }
+                        long indexOffset = counter.count;
+                        data.writeInt(variables.size());
+                        data.writeInt(functions.size());
+                        i = 0;
+                        for (String name : variables.keySet()) {
+                            writeString(data, name);
+                            data.writeLong(offsets[i++]);
+                        }
+                        for (String name : functions.keySet()) {
+                            writeString(data, name);
+                            data.writeLong(offsets[i++]);
+                        }
+                        data.writeLong(indexOffset);
+                    }
+                    // Replace rather than overwrite, so a snapshot that is still mapped keeps its old contents
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    Files.deleteIfExists(temp);
+                }
+            }
+
+            static void load(Path file, Map<String, Object> variables, Map<String, Function> functions) throws IOException {
+                ByteBuffer[] windows;
+                long size;
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    size = channel.size();
+                    windows = new ByteBuffer[(int) ((size + (1L << WINDOW_BITS) - 1) >>> WINDOW_BITS)];
+                    for (int i = 0; i < windows.length; i++) {
+                        long start = (long) i << WINDOW_BITS;
+                        windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << WINDOW_BITS, size - start));
+                    }
+                }
+                Record whole = new Record(windows, 0, size);
+                if (size < HEADER + 16 || whole.getInt() != MAGIC) throw new IOException(file + " is not a Chopped state snapshot");
+                if (whole.getInt() != VERSION) throw new IOException(file + " was saved by a different version of Chopped");
+                long indexOffset = whole.slice(size - 8, size).getLong();
+                Record in = whole.slice(indexOffset, size - 8);
+                Record records = whole.slice(HEADER, indexOffset);
+                int variableCount = in.getSize();
+                int functionCount = in.getSize();
+                if ((long) variableCount + functionCount > in.remaining()) throw corrupt("index of " + variableCount + " variables and " + functionCount + " functions");
+                String[] names = new String[variableCount + functionCount];
+                long[] offsets = new long[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = readString(in);
+                    offsets[i] = in.getLong();
+                }
+                for (int i = 0; i < names.length; i++) {
+                    // Records are written back to back, so each one ends where the next begins
+                    long end = i + 1 < names.length ? offsets[i + 1] : indexOffset;
+                    Record record = records.slice(offsets[i], end);
+                    if (i < variableCount) {
+                        variables.put(names[i], new Lazy(record));
+                    } else {
+                        functions.put(names[i], new Function(names[i], record));
+                    }
+                }
+            }
+
+            static void readFunction(Function function, Record snapshot) {
+                Record in = snapshot.duplicate();
+                int paramCount = in.getSize();
+                function.params = new ArrayList<>(paramCount);
+                for (int i = 0; i < paramCount; i++) {
+                    function.params.add(readString(in));
+                }
+                int defaultCount = in.getSize();
+                function.defaults = new HashMap<>();
+                for (int i = 0; i < defaultCount; i++) {
+                    String param = readString(in);
+                    function.defaults.put(param, readValue(in));
+                }
+                function.body = readTokens(in);
+                function.returnTokens = readTokens(in);
+            }
+
+            private static void writeFunction(DataOutputStream out, Function function) throws IOException {
+                out.writeInt(function.params.size());
+                for (String param : function.params) {
+                    writeString(out, param);
+                }
+                out.writeInt(function.defaults.size());
+                for (Map.Entry<String, Object> entry : function.defaults.entrySet()) {
+                    writeString(out, entry.getKey());
+                    writeValue(out, entry.getValue());
+                }
+                writeTokens(out, function.body);
+                writeTokens(out, function.returnTokens);
+            }
+
+            private static void writeTokens(DataOutputStream out, List<Token> tokens) throws IOException {
+                out.writeInt(tokens.size());
+                for (Token token : tokens) {
+                    writeString(out, token.TokenType);
+                    writeString(out, token.TokenValue);
+                }
+            }
+
+            private static List<Token> readTokens(Record in) {
+                int count = in.getSize();
+                List<Token> tokens = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    String type = readString(in);
+                    tokens.add(new Token(type, readString(in)));
+                }
+                return tokens;
+            }
+
+            private static void writeValue(DataOutputStream out, Object value) throws IOException {
+                if (value == null) {
+                    out.writeByte(NOTHING);
+                } else if (value instanceof Long) {
+                    out.writeByte(WHOLE);
+                    out.writeLong((Long) value);
+                } else if (value instanceof Double) {
+                    out.writeByte(FRACTION);
+                    out.writeDouble((Double) value);
+                } else if (value instanceof BigInteger) {
+                    byte[] bytes = ((BigInteger) value).toByteArray();
+                    out.writeByte(BIG_WHOLE);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                } else if (value instanceof String) {
+                    out.writeByte(TEXT);
+                    writeString(out, (String) value);
+                } else if (value instanceof List) {
+                    List<Object> list = asList(value);
+                    out.writeByte(LIST);
+                    out.writeInt(list.size());
+                    for (Object item : list) {
+                        writeValue(out, item);
+                    }
+                } else if (value instanceof Pantry) {
+                    Pantry pantry = (Pantry) value;
+                    List<Object> keys = pantry.keys();
+                    out.writeByte(PANTRY);
+                    out.writeInt(keys.size());
+                    for (Object key : keys) {
+                        writeValue(out, key);
+                        writeValue(out, pantry.get(key));
+                    }
+                } else if (value instanceof Range) {
+                    Range range = (Range) value;
+                    out.writeByte(RANGE);
+                    out.writeLong(range.start);
+                    out.writeLong(range.end);
+                    out.writeLong(range.step);
+                } else {
+                    throw new IOException("Cannot save a " + value.getClass().getSimpleName());
+                }
+            }
+
+            private static Object readValue(Record in) {
+                byte tag = in.get();
+                switch (tag) {
+                    case NOTHING: return null;
+                    case WHOLE: return in.getLong();
+                    case FRACTION: return in.getDouble();
+                    case BIG_WHOLE: {
+                        byte[] bytes = new byte[in.getSize()];
+                        if (bytes.length == 0) throw corrupt("empty whole number");
+                        in.get(bytes, 0, bytes.length);
+                        return new BigInteger(bytes);
+                    }
+                    case TEXT: return readString(in);
+                    case LIST: {
+                        int count = in.getSize();
+                        List<Object> list = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            list.add(readValue(in));
+                        }
+                        return list;
+                    }
+                    case PANTRY: {
+                        int count = in.getSize();
+                        Pantry pantry = new Pantry();
+                        for (int i = 0; i < count; i++) {
+                            Object key = readValue(in);
+                            pantry.put(key, readValue(in));
+                        }
+                        return pantry;
+                    }
+                    case RANGE: return new Range(in.getLong(), in.getLong(), in.getLong());
+                    default: throw corrupt("unknown value tag " + tag);
+                }
+            }
+
+            private static void writeString(DataOutputStream out, String text) throws IOException {
+                byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            private static String readString(Record in) {
+                byte[] bytes = new byte[in.getSize()];
+                in.get(bytes, 0, bytes.length);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+
+        /**
+         * Resets the budget counters and starts the wall-clock deadline for a new run.
+         */
+        private void startRun() {
+            steps = 0;
+            callDepth = 0;
+            deadline = limits.maxMillis == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + limits.maxMillis * 1_000_000L;
+        }
+
+        /**
+         * Counts one executed statement against the step budget.
+         */
+        private void countStep() {
+            if (++steps > limits.maxSteps) throw new RuntimeException("Budget exceeded: more than " + limits.maxSteps + " statements executed");
         }
 
-        private static boolean isStatementStart(String tokenType) {
-            return tokenType.equals("KEYWORD:SAY") || tokenType.equals("KEYWORD:IF") || tokenType.equals("KEYWORD:SET") || tokenType.equals("KEYWORD:REPEAT") || tokenType.equals("KEYWORD:COOK") || tokenType.equals("KEYWORD:USING") || tokenType.equals("KEYWORD:CHOPPED");
+        /**
+         * Checks the wall-clock deadline; called at loop back-edges and call sites.
+         */
+        private void checkDeadline() {
+            if (deadline != Long.MAX_VALUE && System.nanoTime() > deadline) throw new RuntimeException("Budget exceeded: ran longer than " + limits.maxMillis + " ms");
+        }
+
+        private void checkListSize(int size) {
+            if (size > limits.maxListSize) throw new RuntimeException("Budget exceeded: list longer than " + limits.maxListSize + " items");
+        }
+
+        private void checkPantrySize(int size) {
+            if (size > limits.maxPantrySize) throw new RuntimeException("Budget exceeded: pantry larger than " + limits.maxPantrySize + " entries");
+        }
+
+        private void checkStringLength(int length) {
+            if (length > limits.maxStringLength) throw new RuntimeException("Budget exceeded: string longer than " + limits.maxStringLength + " characters");
+        }
+
+        private static boolean isComparison(String tokenType) {
+            return tokenType.equals("OPERATOR:EQUAL") || tokenType.equals("OPERATOR:NOT_EQUAL") || tokenType.equals("OPERATOR:LESS") || tokenType.equals("OPERATOR:GREATER");
+        }
+
+        private boolean isStatementStart(int at) {
+            String tokenType = tokens.get(at).TokenType;
+            return tokenType.equals("KEYWORD:SAY") || tokenType.equals("KEYWORD:IF") || tokenType.equals("KEYWORD:SET") || tokenType.equals("KEYWORD:REPEAT") || tokenType.equals("KEYWORD:COOK") || tokenType.equals("KEYWORD:USING") || tokenType.equals("KEYWORD:CHOPPED")
+                    || isForEach(at) || isStateStatement(at, "save") || isStateStatement(at, "load") || isStatementWord(at, "put") || isStatementWord(at, "remove");
+        }
+
+        /**
+         * Whether the token at a position is the given word.
+         * Words such as each or file lex as identifiers and only mean something where a statement expects them,
+         * so scripts can still use them as variable names everywhere else.
+         */
+        private boolean isWord(int at, String word) {
+            return at < tokens.size() && tokens.get(at).TokenType.equals("IDENTIFIER") && tokens.get(at).TokenValue.equalsIgnoreCase(word);
+        }
+
+        /**
+         * Whether the token at a position can begin a value, which tells a statement word apart from a variable of the same name.
+         */
+        private boolean startsOperand(int at) {
+            if (at >= tokens.size()) return false;
+            String tokenType = tokens.get(at).TokenType;
+            return tokenType.equals("NUMBER") || tokenType.equals("STRING") || tokenType.equals("TEMPLATE") || tokenType.equals("IDENTIFIER") || tokenType.equals("LPAREN") || tokenType.equals("KEYWORD:ASK");
+        }
+
+        /**
+         * Whether a statement word such as put starts a statement here, rather than a variable of that name starting an expression.
+         */
+        private boolean isStatementWord(int at, String word) {
+            return isWord(at, word) && startsOperand(at + 1);
+        }
+
+        private boolean isForEach(int at) {
+            return isWord(at, "for") && isWord(at + 1, "each");
+        }
+
+        private boolean isStateStatement(int at, String word) {
+            return isWord(at, word) && isWord(at + 1, "state");
         }
 
         /**
@@ -381,7 +2560,7 @@ public class chopped {
          * A function call is: identifier with param as value, ...
          * @return true if it's a function call pattern
          */
-        private static boolean isFunctionCall() {
+        private boolean isFunctionCall() {
             if (pos < tokens.size() && tokens.get(pos).TokenType.equals("IDENTIFIER")) {
                 String funcName = tokens.get(pos).TokenValue;
                 if (functions.containsKey(funcName)) {
@@ -395,9 +2574,22 @@ public class chopped {
 
         /**
          * Parses the list of tokens, handling multiple statements.
+         * Stops at the first error and reports it once, even when it comes from inside an include.
          * @param tokenArray The list of tokens to parse.
          */
-        private static void parse(List<Token> tokenArray) {
+        private void parse(List<Token> tokenArray) {
+            try {
+                parseStatements(tokenArray);
+            } catch (Exception e) {
+                out.println("Parse error: " + e.getMessage());
+                failed = true;
+            }
+        }
+
+        /**
+         * Runs every statement in a token list, leaving errors to the enclosing parse.
+         */
+        private void parseStatements(List<Token> tokenArray) {
             tokens = tokenArray;
             pos = 0;
             while (pos < tokens.size()) {
@@ -405,48 +2597,46 @@ public class chopped {
                     pos++;
                     continue;
                 }
-                try {
-                    if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:SAY")) {
-                        parseSay(true);
-                    } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:IF")) {
-                        parseIf();
-                    } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:SET")) {
-                        parseSet();
-                    } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:CHOPPED")) {
-                        parseChopped();
-                    } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:REPEAT")) {
-                        parseRepeat();
-                    } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:COOK")) {
-                        parseCook();
-                    } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:USING")) {
-                        parseCook();
-                    } else if (isFunctionCall()) {
-                        // Handle function call as a statement
-                        String funcName = tokens.get(pos).TokenValue;
-                        pos++;
-                        parseCall(funcName);
-                    } else if (pos < tokens.size()) {
-                        parseExpr(true);
-                    }
-                } catch (Exception e) {
-                    System.out.println("Parse error: " + e.getMessage());
-                    break; // stop on error
+                countStep();
+                if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:SAY")) {
+                    parseSay();
+                } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:IF")) {
+                    parseIf();
+                } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:SET")) {
+                    parseSet();
+                } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:CHOPPED")) {
+                    parseChopped();
+                } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:REPEAT")) {
+                    parseRepeat();
+                } else if (isForEach(pos)) {
+                    parseForEach();
+                } else if (isStatementWord(pos, "put")) {
+                    parsePut();
+                } else if (isStatementWord(pos, "remove")) {
+                    parseRemove();
+                } else if (isStateStatement(pos, "save")) {
+                    parseSave();
+                } else if (isStateStatement(pos, "load")) {
+                    parseLoad();
+                } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:COOK")) {
+                    parseCook();
+                } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:USING")) {
+                    parseCook();
+                } else if (isFunctionCall()) {
+                    // Handle function call as a statement
+                    String funcName = tokens.get(pos).TokenValue;
+                    pos++;
+                    parseCall(funcName);
+                } else if (pos < tokens.size()) {
+                    parseExpr(true);
                 }
             }
         }
 
-        /**
-         * Parses a say statement: say "message".
-         */
-        private static void parseSay() {
-            parseSay(true);
-        }
-
         /**
          * Parses a say statement: say message [if condition [otherwise [say] message]] [count times].
-         * @param execute Whether to print the message.
          */
-        private static void parseSay(boolean execute) {
+        private void parseSay() {
             pos++; // consume say
             Object result = parseExpr(false);
             if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:IF")) {
@@ -459,26 +2649,29 @@ public class chopped {
                         if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("KEYWORD:TIMES")) throw new RuntimeException("Expected 'times' after count");
                         pos++; // consume times
                     }
-                    int loopCount = countObj == null ? 1 : ((Double) countObj).intValue();
-                    if (execute) {
-                        for (int i = 0; i < loopCount; i++) {
-                            printMessage(result);
-                        }
+                    int loopCount = countObj == null ? 1 : Numbers.toInt(countObj);
+                    for (int i = 0; i < loopCount; i++) {
+                        countStep();
+                        checkDeadline();
+                        printMessage(result);
+                    }
+                    if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:OTHERWISE")) {
+                        pos++; // consume otherwise
+                        skipOtherwiseSay();
                     }
                 } else {
+                    skipSayCount();
                     if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:OTHERWISE")) {
                         pos++; // consume otherwise
                         if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:SAY")) {
-                            parseSay(execute);
+                            parseSay();
                         } else {
-                            parseExpr(execute);
+                            parseExpr();
                         }
                     }
                 }
             } else {
-                if (execute) {
-                    printMessage(result);
-                }
+                printMessage(result);
             }
         }
 
@@ -486,43 +2679,101 @@ public class chopped {
          * Prints the message with punctuation handling.
          * @param result The object to print.
          */
-        private static void printMessage(Object result) {
-            String msg = result.toString();
-            if (msg.length() >= 1 && (msg.charAt(msg.length() - 1) == '.' || msg.charAt(msg.length() - 1) == '!' || msg.charAt(msg.length() - 1) == '?')) {
-                if (msg.length() >= 2 && msg.charAt(msg.length() - 1) == msg.charAt(msg.length() - 2)) {
-                    System.out.println(msg.substring(0, msg.length() - 1));
-                } else {
-                    System.out.println(msg);
+        private void printMessage(Object result) {
+            line.setLength(0);
+            appendValue(line, result);
+            int length = line.length();
+            if (length >= 2 && (line.charAt(length - 1) == '.' || line.charAt(length - 1) == '!' || line.charAt(length - 1) == '?') && line.charAt(length - 1) == line.charAt(length - 2)) {
+                line.setLength(length - 1);
+            }
+            writeLine();
+        }
+
+        /**
+         * Writes the line buffer and a line separator to out, encoding into a reused byte buffer so printing does not
+         * build a String per line.
+         */
+        private void writeLine() {
+            line.append(System.lineSeparator());
+            long needed = (long) Math.ceil(line.length() * (double) encoder.maxBytesPerChar());
+            if (needed > lineBytes.capacity()) lineBytes = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE - 8, Math.max(needed, 2L * lineBytes.capacity())));
+            lineBytes.clear();
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(line), lineBytes, true);
+            encoder.flush(lineBytes);
+            out.write(lineBytes.array(), 0, lineBytes.position());
+        }
+
+        /**
+         * Appends a value as it is shown to the user; numbers go through the NumberFormatter.
+         */
+        private static void appendValue(StringBuilder sb, Object value) {
+            if (Numbers.isNumber(value)) {
+                NumberFormatter.append(sb, value);
+            } else if (value instanceof List) {
+                sb.append('[');
+                List<Object> list = asList(value);
+                for (int i = 0; i < list.size(); i++) {
+                    if (i > 0) sb.append(", ");
+                    appendValue(sb, list.get(i));
+                }
+                sb.append(']');
+            } else if (value instanceof Pantry) {
+                Pantry pantry = (Pantry) value;
+                sb.append('{');
+                boolean first = true;
+                for (Object key : pantry.keys()) {
+                    if (!first) sb.append(", ");
+                    first = false;
+                    appendValue(sb, key);
+                    sb.append(": ");
+                    appendValue(sb, pantry.get(key));
                 }
+                sb.append('}');
+            } else if (value instanceof Range) {
+                ((Range) value).appendTo(sb);
             } else {
-                System.out.println(msg);
+                sb.append(value.toString());
             }
         }
 
+        /**
+         * Converts a value to the text it shows as, for string concatenation.
+         */
+        private static String textOf(Object value) {
+            if (value instanceof String) return (String) value;
+            if (value == null) return "null";
+            StringBuilder sb = new StringBuilder(24);
+            appendValue(sb, value);
+            return sb.toString();
+        }
+
         /**
          * Parses an if statement: if condition [then] [do] statement [otherwise [do] statement].
          */
-        private static void parseIf() {
+        private void parseIf() {
             pos++; // consume if
             boolean condition = parseCondition();
             if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:THEN")) {
                 pos++; // consume then
             }
             if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:DO")) pos++; // optional do
-            parseStatement(condition);
+            if (condition) parseStatement();
+            else skipStatement();
             if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:OTHERWISE")) {
                 pos++; // consume otherwise
                 if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:DO")) pos++; // optional do
-                parseStatement(!condition);
+                if (condition) skipStatement();
+                else parseStatement();
             }
         }
 
         /**
          * Parses a set statement: set var to value (string, identifier, expression, or ask string).
-         * Also supports: set var to empty list
+         * Also supports: set var to empty list, set var to empty pantry
          * and set var to list with expr1, expr2, and exprN
          */
-        private static void parseSet() {
+        private void parseSet() {
             pos++; // consume set
             if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("IDENTIFIER")) throw new RuntimeException("Expected variable name after set");
             String varName = tokens.get(pos).TokenValue;
@@ -534,22 +2785,28 @@ public class chopped {
             if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:ASK")) {
                 // Handle: set var to ask "prompt"
                 pos++; // consume ask
-                if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("STRING")) throw new RuntimeException("Expected prompt string after 'ask'");
-                String prompt = tokens.get(pos).TokenValue;
+                if (pos >= tokens.size() || !(tokens.get(pos).TokenType.equals("STRING") || tokens.get(pos).TokenType.equals("TEMPLATE"))) throw new RuntimeException("Expected prompt string after 'ask'");
+                String prompt = tokens.get(pos).TokenType.equals("TEMPLATE") ? render(tokens.get(pos)) : tokens.get(pos).TokenValue;
                 pos++; // consume prompt string
-                System.out.print(prompt);
-                String userInput = inputScanner.nextLine();
+                out.print(prompt);
+                String userInput = input.nextLine();
+                checkStringLength(userInput.length());
                 // Try to parse as number if possible, otherwise keep as string
                 try {
-                    value = Double.parseDouble(userInput);
+                    value = Numbers.parse(userInput);
                 } catch (NumberFormatException e) {
                     value = userInput;
                 }
             } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:EMPTY")) {
                 pos++; // consume empty
-                if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("KEYWORD:LIST")) throw new RuntimeException("Expected 'list' after 'empty'");
-                pos++; // consume list
-                value = new ArrayList<>();
+                if (isWord(pos, "pantry")) {
+                    value = new Pantry();
+                } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:LIST")) {
+                    value = new ArrayList<>();
+                } else {
+                    throw new RuntimeException("Expected 'list' or 'pantry' after 'empty'");
+                }
+                pos++; // consume list or pantry
             } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:LIST")) {
                 pos++; // consume list
                 if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("KEYWORD:WITH")) throw new RuntimeException("Expected 'with' after 'list'");
@@ -583,6 +2840,7 @@ public class chopped {
                     }
                 }
 
+                checkListSize(list.size());
                 value = list;
             } else {
                 value = parseExpr(false);
@@ -595,7 +2853,7 @@ public class chopped {
         /**
          * Parses a repeat loop: repeat [code] [count] times or repeat [count] times [code].
          */
-        private static void parseRepeat() {
+        private void parseRepeat() {
             pos++; // consume repeat
             Object countObj;
             int startPos;
@@ -606,30 +2864,135 @@ public class chopped {
                 if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("KEYWORD:TIMES")) throw new RuntimeException("Expected 'times' after count");
                 pos++; // consume times
                 startPos = pos;
-                parseStatement(false); // parse the code without executing
+                skipStatement(); // find the end of the code without running it
                 endPos = pos;
             } else {
                 // Form 1: repeat [code] [count] times
                 startPos = pos;
-                parseStatement(false); // parse the code without executing
+                skipStatement(); // find the end of the code without running it
                 countObj = parseExpr(false);
                 if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("KEYWORD:TIMES")) throw new RuntimeException("Expected 'times' after count");
                 pos++; // consume times
                 endPos = pos;
             }
-            if (!(countObj instanceof Double)) throw new RuntimeException("Loop count must be numeric");
-            int count = ((Double) countObj).intValue();
+            if (!Numbers.isNumber(countObj)) throw new RuntimeException("Loop count must be numeric");
+            int count = Numbers.toInt(countObj);
             for (int i = 0; i < count; i++) {
+                checkDeadline();
                 pos = startPos;
-                parseStatement(true);
+                parseStatement();
+            }
+            pos = endPos;
+        }
+
+        /**
+         * Parses a for each loop: for each name in file "path" [do] statement, or for each name in a list, range or pantry.
+         * The file is streamed one line at a time; numeric lines are bound as numbers, others as strings.
+         * Lists are walked with a cursor and ranges compute each number as they go, so neither is copied.
+         */
+        private void parseForEach() {
+            pos++; // consume for
+            if (!isWord(pos, "each")) throw new RuntimeException("Expected 'each' after 'for'");
+            pos++; // consume each
+            if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("IDENTIFIER")) throw new RuntimeException("Expected variable name after 'for each'");
+            String varName = tokens.get(pos).TokenValue;
+            pos++;
+            if (!isWord(pos, "in")) throw new RuntimeException("Expected 'in' after variable name");
+            pos++; // consume in
+            // file is only the keyword when a file name follows, so a variable named file can still be looped over
+            if (!(isWord(pos, "file") && startsOperand(pos + 1))) {
+                Object source = parseExpr(false);
+                if (!(source instanceof List) && !(source instanceof Range) && !(source instanceof Pantry)) {
+                    throw new RuntimeException("Can only loop over a file, list, range or pantry");
+                }
+                if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:DO")) pos++; // optional do
+                int startPos = pos;
+                skipStatement();
+                int endPos = pos;
+                if (source instanceof Range) {
+                    Range range = (Range) source;
+                    long value = range.start;
+                    for (long i = 0; i < range.size; i++, value += range.step) {
+                        checkDeadline();
+                        variables.put(varName, value);
+                        pos = startPos;
+                        parseStatement();
+                    }
+                } else {
+                    List<Object> items = source instanceof List ? asList(source) : ((Pantry) source).keys();
+                    for (int i = 0; i < items.size(); i++) {
+                        checkDeadline();
+                        variables.put(varName, items.get(i));
+                        pos = startPos;
+                        parseStatement();
+                    }
+                }
+                pos = endPos;
+                return;
+            }
+            pos++; // consume file
+            Object fileName = parseExpr(false);
+            if (!(fileName instanceof String)) throw new RuntimeException("Expected file name after 'in file'");
+            if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:DO")) pos++; // optional do
+            int startPos = pos;
+            skipStatement();
+            int endPos = pos;
+            try (LineReader reader = new LineReader(baseDir.resolve((String) fileName))) {
+                for (String line = reader.next(); line != null; line = reader.next()) {
+                    checkDeadline();
+                    checkStringLength(line.length());
+                    variables.put(varName, Numbers.parseOrText(line));
+                    pos = startPos;
+                    parseStatement();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading file: " + e.getMessage());
             }
             pos = endPos;
         }
 
+        /**
+         * Parses a put statement: put value in pantry at key.
+         */
+        private void parsePut() {
+            pos++; // consume put
+            Object value = parseExpr(false);
+            if (!isWord(pos, "in")) throw new RuntimeException("Expected 'in' after value");
+            pos++; // consume in
+            Pantry pantry = pantryNamed();
+            if (!isWord(pos, "at")) throw new RuntimeException("Expected 'at' after pantry name");
+            pos++; // consume at
+            Object key = parseExpr(false);
+            pantry.put(key, value);
+            checkPantrySize(pantry.size());
+        }
+
+        /**
+         * Parses a remove statement: remove key from pantry.
+         */
+        private void parseRemove() {
+            pos++; // consume remove
+            Object key = parseExpr(false);
+            if (!isWord(pos, "from")) throw new RuntimeException("Expected 'from' after key");
+            pos++; // consume from
+            pantryNamed().remove(key);
+        }
+
+        /**
+         * Reads a variable name and returns the pantry it holds.
+         */
+        private Pantry pantryNamed() {
+            if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("IDENTIFIER")) throw new RuntimeException("Expected pantry name");
+            Object value = lookup(tokens.get(pos).TokenValue);
+            if (!(value instanceof Pantry)) throw new RuntimeException(tokens.get(pos).TokenValue + " is not a pantry");
+            pos++;
+            return (Pantry) value;
+        }
+
         /**
          * Parses a chopped statement: chopped "filename" or chopped filename.
          */
-        private static void parseChopped() {
+        private void parseChopped() {
             pos++; // consume chopped
             String fileName;
             if (pos < tokens.size() && tokens.get(pos).TokenType.equals("STRING")) {
@@ -650,11 +3013,33 @@ public class chopped {
             } else {
                 throw new RuntimeException("Expected file name after chopped");
             }
+            Path file = baseDir.resolve(fileName).toAbsolutePath().normalize();
+            if (including.contains(file)) {
+                // Only includes that actually run count, so a chopped statement in an untaken branch is fine
+                StringBuilder sb = new StringBuilder("Include cycle: ");
+                for (Path active : including.subList(including.indexOf(file), including.size())) {
+                    sb.append(active.getFileName()).append(" -> ");
+                }
+                throw new RuntimeException(sb.append(file.getFileName()).toString());
+            }
+            List<Token> included = prepared.get(file);
+            if (included == null) {
+                try {
+                    included = Lexer.lexFile(file);
+                } catch (Exception e) {
+                    throw new RuntimeException("Error reading file: " + e.getMessage());
+                }
+            }
+            // Run the include, then pick up the including script where it left off
+            List<Token> oldTokens = tokens;
+            int oldPos = pos;
+            including.add(file);
             try {
-                String content = new String(Files.readAllBytes(Paths.get(fileName)));
-                Lexer.lexar(content);
-            } catch (Exception e) {
-                throw new RuntimeException("Error reading file: " + e.getMessage());
+                parseStatements(included);
+            } finally {
+                including.remove(including.size() - 1);
+                tokens = oldTokens;
+                pos = oldPos;
             }
         }
 
@@ -662,7 +3047,7 @@ public class chopped {
          * Parses parameters: comma-separated params or params separated by 'and', e.g., param1, param2, param3 or param1 and param2 and param3,
          * Supports defaults: param or default
          */
-        private static void parseParams(List<String> params, Map<String, Object> defaults) {
+        private void parseParams(List<String> params, Map<String, Object> defaults) {
             while (pos < tokens.size()) {
                 if (tokens.get(pos).TokenType.equals("IDENTIFIER")) {
                     String param = tokens.get(pos).TokenValue;
@@ -688,7 +3073,7 @@ public class chopped {
          * Parses a cook statement: cook [func name] using [params] by [code] serve [return]
          * or using [params] cook [func name] by [code] serve [return]
          */
-        private static void parseCook() {
+        private void parseCook() {
             String funcName;
             List<String> params = new ArrayList<>();
             Map<String, Object> defaults = new HashMap<>();
@@ -735,7 +3120,7 @@ public class chopped {
             if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:NOTHING")) {
                 pos++;
             } else {
-                while (pos < tokens.size() && !tokens.get(pos).TokenType.equals("NEWLINE") && !isStatementStart(tokens.get(pos).TokenType)) {
+                while (pos < tokens.size() && !tokens.get(pos).TokenType.equals("NEWLINE") && !isStatementStart(pos)) {
                     returnTokens.add(tokens.get(pos));
                     pos++;
                 }
@@ -749,58 +3134,304 @@ public class chopped {
 
         /**
          * Parses a statement: either say, if, set, or expression.
-         * @param execute Whether to execute the statement (print output).
          */
-        private static void parseStatement(boolean execute) {
+        private void parseStatement() {
+            countStep();
             if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:SAY")) {
-                parseSay(execute);
+                parseSay();
             } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:IF")) {
                 parseIf();
             } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:SET")) {
                 parseSet();
+            } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:CHOPPED")) {
+                parseChopped();
+            } else if (isForEach(pos)) {
+                parseForEach();
+            } else if (isStatementWord(pos, "put")) {
+                parsePut();
+            } else if (isStatementWord(pos, "remove")) {
+                parseRemove();
+            } else if (isStateStatement(pos, "save")) {
+                parseSave();
+            } else if (isStateStatement(pos, "load")) {
+                parseLoad();
+            } else {
+                Object result = parseExpr();
+            }
+        }
+
+        /**
+         * Moves past a statement using token structure alone: nothing is evaluated, printed, asked or assigned.
+         * Used for untaken branches and to find where a loop body ends.
+         */
+        private void skipStatement() {
+            if (pos >= tokens.size()) return;
+            String type = tokens.get(pos).TokenType;
+            if (type.equals("KEYWORD:SAY")) {
+                skipSay();
+            } else if (type.equals("KEYWORD:IF")) {
+                pos++; // skip if
+                skipCondition();
+                if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:THEN")) pos++;
+                if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:DO")) pos++;
+                skipStatement();
+                if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:OTHERWISE")) {
+                    pos++; // skip otherwise
+                    if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:DO")) pos++;
+                    skipStatement();
+                }
+            } else if (type.equals("KEYWORD:SET")) {
+                skipSet();
+            } else if (type.equals("KEYWORD:CHOPPED")) {
+                pos++; // skip chopped
+                if (pos < tokens.size() && tokens.get(pos).TokenType.equals("STRING")) {
+                    pos++;
+                } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("IDENTIFIER")) {
+                    pos++;
+                    if (pos < tokens.size() && tokens.get(pos).TokenType.equals("PUNCTUATION:PERIOD")) {
+                        pos++;
+                        if (pos < tokens.size() && tokens.get(pos).TokenType.equals("IDENTIFIER")) pos++;
+                    }
+                }
+            } else if (isForEach(pos)) {
+                pos += 2; // skip for each
+                if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("IDENTIFIER")) throw new RuntimeException("Expected variable name after 'for each'");
+                pos++; // skip the loop variable
+                if (!isWord(pos, "in")) throw new RuntimeException("Expected 'in' after variable name");
+                pos++; // skip in
+                if (isWord(pos, "file") && startsOperand(pos + 1)) pos++;
+                skipExpr();
+                if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:DO")) pos++;
+                skipStatement();
+            } else if (isStatementWord(pos, "put")) {
+                pos++; // skip put
+                skipExpr();
+                if (!isWord(pos, "in")) throw new RuntimeException("Expected 'in' after value");
+                pos++; // skip in
+                skipPantryName();
+                if (!isWord(pos, "at")) throw new RuntimeException("Expected 'at' after pantry name");
+                pos++; // skip at
+                skipExpr();
+            } else if (isStatementWord(pos, "remove")) {
+                pos++; // skip remove
+                skipExpr();
+                if (!isWord(pos, "from")) throw new RuntimeException("Expected 'from' after key");
+                pos++; // skip from
+                skipPantryName();
+            } else if (isStateStatement(pos, "save")) {
+                pos += 2; // skip save state
+                if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("KEYWORD:TO")) throw new RuntimeException("Expected 'to' after 'save state'");
+                pos++; // skip to
+                skipExpr();
+            } else if (isStateStatement(pos, "load")) {
+                pos += 2; // skip load state
+                if (!isWord(pos, "from")) throw new RuntimeException("Expected 'from' after 'load state'");
+                pos++; // skip from
+                skipExpr();
+            } else {
+                skipExpr();
+            }
+        }
+
+        private void skipPantryName() {
+            if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("IDENTIFIER")) throw new RuntimeException("Expected pantry name");
+            pos++;
+        }
+
+        private void skipSay() {
+            pos++; // skip say
+            skipExpr();
+            if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:IF")) {
+                pos++; // skip if
+                skipCondition();
+                skipSayCount();
+                if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:OTHERWISE")) {
+                    pos++; // skip otherwise
+                    skipOtherwiseSay();
+                }
+            }
+        }
+
+        /**
+         * Skips the optional [count] times of an inline say ... if.
+         */
+        private void skipSayCount() {
+            if (pos < tokens.size() && (tokens.get(pos).TokenType.equals("NUMBER") || tokens.get(pos).TokenType.equals("IDENTIFIER") || tokens.get(pos).TokenType.equals("LPAREN"))) {
+                skipExpr();
+                if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("KEYWORD:TIMES")) throw new RuntimeException("Expected 'times' after count");
+                pos++; // skip times
+            }
+        }
+
+        /**
+         * Skips what follows otherwise in an inline say ... if: another say or an expression.
+         */
+        private void skipOtherwiseSay() {
+            if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:SAY")) {
+                skipSay();
+            } else {
+                skipExpr();
+            }
+        }
+
+        private void skipSet() {
+            pos++; // skip set
+            if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("IDENTIFIER")) throw new RuntimeException("Expected variable name after set");
+            pos++;
+            if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("KEYWORD:TO")) throw new RuntimeException("Expected 'to' after variable name");
+            pos++;
+            if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:ASK")) {
+                pos += 2; // skip ask and prompt
+            } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:EMPTY")) {
+                pos += 2; // skip empty list
+            } else if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:LIST")) {
+                pos += 2; // skip list with
+                skipExpr();
+                while (pos < tokens.size()) {
+                    if (tokens.get(pos).TokenType.equals(",")) {
+                        pos++;
+                        boolean last = pos < tokens.size() && tokens.get(pos).TokenValue.equals("and");
+                        if (last) pos++;
+                        skipExpr();
+                        if (last) break;
+                    } else if (tokens.get(pos).TokenValue.equals("and")) {
+                        pos++;
+                        skipExpr();
+                        break;
+                    } else {
+                        break;
+                    }
+                }
             } else {
-                Object result = parseExpr(execute);
+                skipExpr();
+            }
+        }
+
+        private void skipCondition() {
+            boolean hasParen = pos < tokens.size() && tokens.get(pos).TokenType.equals("LPAREN");
+            if (hasParen) pos++;
+            skipExpr();
+            if (pos < tokens.size() && isComparison(tokens.get(pos).TokenType)) {
+                pos++; // skip comparison operator
+                skipExpr();
+            }
+            if (hasParen) {
+                if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("RPAREN")) throw new RuntimeException("Expected )");
+                pos++;
+            }
+        }
+
+        private void skipExpr() {
+            skipSum();
+            if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:TO")) {
+                pos++; // skip to
+                skipSum();
+                if (hasRangeStep()) {
+                    pos++; // skip by
+                    skipSum();
+                }
+            }
+        }
+
+        private void skipSum() {
+            skipTerm();
+            while (pos < tokens.size() && (tokens.get(pos).TokenType.equals("OPERATOR:PLUS") || tokens.get(pos).TokenType.equals("OPERATOR:MINUS"))) {
+                pos++;
+                skipTerm();
+            }
+        }
+
+        private void skipTerm() {
+            skipFactor();
+            while (pos < tokens.size() && (tokens.get(pos).TokenType.equals("OPERATOR:MULTIPLY") || tokens.get(pos).TokenType.equals("OPERATOR:DIVIDE"))) {
+                pos++;
+                skipFactor();
+            }
+        }
+
+        private void skipFactor() {
+            if (pos >= tokens.size()) throw new RuntimeException("Unexpected end of input");
+            Token t = tokens.get(pos);
+            pos++;
+            if (t.TokenType.equals("KEYWORD:ASK")) {
+                pos++; // skip prompt
+            } else if (t.TokenType.equals("IDENTIFIER") && t.TokenValue.equalsIgnoreCase("lines") && isWord(pos, "of") && !functions.containsKey(t.TokenValue)) {
+                pos++; // skip of
+                skipFactor();
+            } else if (t.TokenType.equals("IDENTIFIER")) {
+                if (functions.containsKey(t.TokenValue)) {
+                    skipCallArgs();
+                } else if (Vectors.isReduction(t.TokenValue) && isWord(pos, "of")) {
+                    pos++; // skip of
+                    skipFactor();
+                } else if (pos < tokens.size() && tokens.get(pos).TokenValue.equals(":")) {
+                    pos++; // skip :
+                    skipExpr();
+                } else if (isWord(pos, "has")) {
+                    pos++; // skip has
+                    skipFactor();
+                }
+            } else if (t.TokenType.equals("LPAREN")) {
+                skipExpr();
+                if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("RPAREN")) throw new RuntimeException("Missing )");
+                pos++;
+            } else if (!t.TokenType.equals("NUMBER") && !t.TokenType.equals("STRING") && !t.TokenType.equals("TEMPLATE")) {
+                throw new RuntimeException("Unexpected token: " + t);
+            }
+        }
+
+        private void skipCallArgs() {
+            if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:WITH")) {
+                pos++; // skip with
+                while (pos < tokens.size() && tokens.get(pos).TokenType.equals("IDENTIFIER")) {
+                    pos += 2; // skip param and as
+                    skipExpr();
+                    if (pos < tokens.size() && tokens.get(pos).TokenType.equals(",")) {
+                        pos++;
+                    } else {
+                        break;
+                    }
+                }
             }
         }
 
         /**
          * Parses a condition for comparison in if statements.
-         * Supports optional parentheses around the condition.
+         * Supports optional parentheses around the condition, and a lone number that is true when not zero.
          * @return true if the condition is met, false otherwise.
          */
-        private static boolean parseCondition() {
+        private boolean parseCondition() {
             boolean hasParen = false;
             if (pos < tokens.size() && tokens.get(pos).TokenType.equals("LPAREN")) {
                 hasParen = true;
                 pos++;
             }
-            Object leftObj = parseExpr(false);
-            if (!(leftObj instanceof Double)) throw new RuntimeException("Condition must be numeric");
-            double left = (Double) leftObj;
-            if (pos >= tokens.size()) throw new RuntimeException("Expected comparison operator");
+            Object left = parseExpr(false);
+            if (!Numbers.isNumber(left)) throw new RuntimeException("Condition must be numeric");
+            if (pos >= tokens.size() || !isComparison(tokens.get(pos).TokenType)) {
+                // A lone number, such as pantry has key, is true when it is not zero
+                if (hasParen) {
+                    if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("RPAREN")) throw new RuntimeException("Expected )");
+                    pos++;
+                }
+                return Numbers.compare(left, 0L, "OPERATOR:NOT_EQUAL");
+            }
             String op = tokens.get(pos).TokenType;
             pos++;
-            Object rightObj = parseExpr(false);
-            if (!(rightObj instanceof Double)) throw new RuntimeException("Condition must be numeric");
-            double right = (Double) rightObj;
+            Object right = parseExpr(false);
+            if (!Numbers.isNumber(right)) throw new RuntimeException("Condition must be numeric");
             if (hasParen) {
                 if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("RPAREN")) throw new RuntimeException("Expected )");
                 pos++;
             }
-            switch (op) {
-                case "OPERATOR:EQUAL": return left == right;
-                case "OPERATOR:NOT_EQUAL": return left != right;
-                case "OPERATOR:LESS": return left < right;
-                case "OPERATOR:GREATER": return left > right;
-                default: throw new RuntimeException("Invalid comparison operator: " + op);
-            }
+            return Numbers.compare(left, right, op);
         }
 
         /**
          * Parses an expression, handling addition and subtraction.
          * @return The evaluated result of the expression.
          */
-        private static Object parseExpr() {
+        private Object parseExpr() {
             return parseExpr(true);
         }
 
@@ -809,33 +3440,26 @@ public class chopped {
          * @param execute Whether to print the result.
          * @return The evaluated result of the expression.
          */
-        private static Object parseExpr(boolean execute) {
-            Object left = parseTerm();
-            while (pos < tokens.size() && (tokens.get(pos).TokenType.equals("OPERATOR:PLUS") || tokens.get(pos).TokenType.equals("OPERATOR:MINUS"))) {
-                String op = tokens.get(pos).TokenType;
-                pos++;
-                Object right = parseTerm();
-                if (op.equals("OPERATOR:PLUS")) {
-                    if (left instanceof Double && right instanceof Double) {
-                        left = (Double) left + (Double) right;
-                    } else if (left instanceof String || right instanceof String) {
-                        left = left.toString() + right.toString();
-                    } else {
-                        throw new RuntimeException("Invalid operands for +");
-                    }
-                } else if (op.equals("OPERATOR:MINUS")) {
-                    if (left instanceof Double && right instanceof Double) {
-                        left = (Double) left - (Double) right;
-                    } else {
-                        throw new RuntimeException("Invalid operands for -");
-                    }
+        private Object parseExpr(boolean execute) {
+            Object left = parseSum();
+            if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:TO")) {
+                // Handle start to end [by step] - a lazy range
+                pos++; // consume to
+                Object end = parseSum();
+                Object step = null;
+                if (hasRangeStep()) {
+                    pos++; // consume by
+                    step = parseSum();
                 }
+                left = Range.of(left, end, step);
             }
             if (execute) {
-                if (left instanceof Double) {
-                    System.out.println("Result: " + left);
+                if (Numbers.isNumber(left)) {
+                    line.setLength(0);
+                    NumberFormatter.append(line.append("Result: "), left);
+                    writeLine();
                 } else if (left instanceof String) {
-                    System.out.println(left);
+                    out.println(left);
                 } else if (left == null) {
                     // do nothing
                 }
@@ -843,68 +3467,284 @@ public class chopped {
             return left;
         }
 
+        private int opcodeAt(int at) {
+            return at < tokens.size() ? tokens.get(at).opcode : Token.NONE;
+        }
+
+        /**
+         * Parses addition and subtraction.
+         * @return The evaluated result of the sum.
+         */
+        private Object parseSum() {
+            Object left = parseTerm();
+            for (int op = opcodeAt(pos); op == Token.ADD || op == Token.SUBTRACT; op = opcodeAt(pos)) {
+                Token site = tokens.get(pos);
+                pos++;
+                Object right = parseTerm();
+                left = op == Token.ADD ? add(site, left, right) : subtract(site, left, right);
+            }
+            return left;
+        }
+
+        /**
+         * Whether a range is followed by by and a step, rather than by the by that starts a cook body.
+         */
+        private boolean hasRangeStep() {
+            if (pos + 1 >= tokens.size() || !tokens.get(pos).TokenType.equals("KEYWORD:BY")) return false;
+            String next = tokens.get(pos + 1).TokenType;
+            return next.equals("NUMBER") || next.equals("IDENTIFIER") || next.equals("LPAREN");
+        }
+
         /**
          * Parses a term, handling multiplication and division.
          * @return The evaluated result of the term.
          */
-        private static Object parseTerm() {
+        private Object parseTerm() {
             Object left = parseFactor();
-            while (pos < tokens.size() && (tokens.get(pos).TokenType.equals("OPERATOR:MULTIPLY") || tokens.get(pos).TokenType.equals("OPERATOR:DIVIDE"))) {
-                String op = tokens.get(pos).TokenType;
+            for (int op = opcodeAt(pos); op == Token.MULTIPLY || op == Token.DIVIDE; op = opcodeAt(pos)) {
+                Token site = tokens.get(pos);
                 pos++;
                 Object right = parseFactor();
-                if (!(left instanceof Double) || !(right instanceof Double)) throw new RuntimeException("Operands for * / must be numbers");
-                double l = (Double) left;
-                double r = (Double) right;
-                if (op.equals("OPERATOR:MULTIPLY")) left = l * r;
-                else left = l / r;
+                left = multiplyOrDivide(site, left, right);
             }
             return left;
         }
 
+        /**
+         * Applies + at an operator site, taking the specialized path while the site's type feedback holds.
+         * On a specialized path the casts are the guard: a failed cast deoptimizes the site for the rest of the run.
+         * @param site The operator token, whose type feedback this run records.
+         */
+        private Object add(Token site, Object left, Object right) {
+            int state = feedbackAt(site);
+            if (state == Token.UNSEEN) state = observe(site, left, right, true);
+            try {
+                switch (state) {
+                    case Token.INTEGERS:
+                        long l = (Long) left;
+                        long r = (Long) right;
+                        long sum = l + r;
+                        if (((l ^ sum) & (r ^ sum)) >= 0) return sum; // no overflow
+                        return Numbers.add(left, right);
+                    case Token.DOUBLES:
+                        return (Double) left + (Double) right;
+                    case Token.STRINGS:
+                        return concat((String) left, (String) right);
+                    default:
+                        break;
+                }
+            } catch (ClassCastException | NullPointerException e) {
+                setFeedback(site, Token.GENERIC);
+            }
+            if (Numbers.isNumber(left) && Numbers.isNumber(right)) {
+                return Numbers.add(left, right);
+            } else if (Vectors.applies(left, right)) {
+                return checkedList(Vectors.apply('+', left, right));
+            } else if (left instanceof String || right instanceof String) {
+                return concat(textOf(left), textOf(right));
+            } else {
+                throw new RuntimeException("Invalid operands for +");
+            }
+        }
+
+        /**
+         * Picks and records the specialization for a site from the first operands it sees.
+         * @param strings Whether the operator has a string/string specialization.
+         */
+        private int observe(Token site, Object left, Object right, boolean strings) {
+            int state = Token.GENERIC;
+            if (left instanceof Long && right instanceof Long) state = Token.INTEGERS;
+            else if (left instanceof Double && right instanceof Double) state = Token.DOUBLES;
+            else if (strings && left instanceof String && right instanceof String) state = Token.STRINGS;
+            setFeedback(site, state);
+            return state;
+        }
+
+        private int feedbackAt(Token site) {
+            return site.site < feedback.length ? feedback[site.site] : Token.UNSEEN;
+        }
+
+        private void setFeedback(Token site, int state) {
+            if (site.site >= feedback.length) feedback = Arrays.copyOf(feedback, Math.max(site.site + 1, feedback.length * 2));
+            feedback[site.site] = (byte) state;
+        }
+
+        private String concat(String l, String r) {
+            checkStringLength(l.length() + r.length());
+            return l + r;
+        }
+
+        /**
+         * Applies - at an operator site; see {@link #add}.
+         */
+        private Object subtract(Token site, Object left, Object right) {
+            int state = feedbackAt(site);
+            if (state == Token.UNSEEN) state = observe(site, left, right, false);
+            try {
+                if (state == Token.INTEGERS) {
+                    long l = (Long) left;
+                    long r = (Long) right;
+                    long difference = l - r;
+                    if (((l ^ r) & (l ^ difference)) >= 0) return difference; // no overflow
+                    return Numbers.subtract(left, right);
+                }
+                if (state == Token.DOUBLES) return (Double) left - (Double) right;
+            } catch (ClassCastException | NullPointerException e) {
+                setFeedback(site, Token.GENERIC);
+            }
+            if (Numbers.isNumber(left) && Numbers.isNumber(right)) {
+                return Numbers.subtract(left, right);
+            } else if (Vectors.applies(left, right)) {
+                return checkedList(Vectors.apply('-', left, right));
+            } else {
+                throw new RuntimeException("Invalid operands for -");
+            }
+        }
+
+        /**
+         * Applies * or / at an operator site; see {@link #add}.
+         */
+        private Object multiplyOrDivide(Token site, Object left, Object right) {
+            boolean multiply = site.opcode == Token.MULTIPLY;
+            int state = feedbackAt(site);
+            if (state == Token.UNSEEN) state = observe(site, left, right, false);
+            try {
+                if (state == Token.INTEGERS) {
+                    long l = (Long) left;
+                    long r = (Long) right;
+                    if (multiply) {
+                        try {
+                            return Math.multiplyExact(l, r);
+                        } catch (ArithmeticException e) {
+                            return Numbers.multiply(left, right); // promote to BigInteger
+                        }
+                    }
+                    // Whole when it divides evenly, like Numbers.divide
+                    if (r != 0 && l % r == 0 && !(l == Long.MIN_VALUE && r == -1)) return l / r;
+                    return (double) l / (double) r;
+                }
+                if (state == Token.DOUBLES) {
+                    double l = (Double) left;
+                    double r = (Double) right;
+                    return multiply ? l * r : l / r;
+                }
+            } catch (ClassCastException | NullPointerException e) {
+                setFeedback(site, Token.GENERIC);
+            }
+            if (Vectors.applies(left, right)) return checkedList(Vectors.apply(multiply ? '*' : '/', left, right));
+            if (!Numbers.isNumber(left) || !Numbers.isNumber(right)) throw new RuntimeException("Operands for * / must be numbers");
+            return multiply ? Numbers.multiply(left, right) : Numbers.divide(left, right);
+        }
+
+        private List<Object> checkedList(List<Object> list) {
+            checkListSize(list.size());
+            return list;
+        }
+
+        /**
+         * Reads list:index or pantry:key at an index site, skipping the type checks while the site has only seen lists with whole-number indices.
+         * @param site The : token, whose type feedback this run records.
+         */
+        private Object index(Token site, Object target, Object indexObj) {
+            int state = feedbackAt(site);
+            if (state == Token.UNSEEN) {
+                state = target instanceof List && indexObj instanceof Long ? Token.LIST_NUMBER : Token.GENERIC;
+                setFeedback(site, state);
+            }
+            try {
+                if (state == Token.LIST_NUMBER) {
+                    List<Object> list = asList(target);
+                    long index = (Long) indexObj - 1; // 1-based to 0-based
+                    if (index < 0 || index >= list.size()) throw new RuntimeException("Index out of bounds");
+                    return list.get((int) index);
+                }
+            } catch (ClassCastException | NullPointerException e) {
+                setFeedback(site, Token.GENERIC);
+            }
+            if (target instanceof Pantry) return ((Pantry) target).get(indexObj);
+            if (!Numbers.isNumber(indexObj)) throw new RuntimeException("Index must be numeric");
+            if (target instanceof Range) return ((Range) target).get(indexObj instanceof Long ? (Long) indexObj : Numbers.toInt(indexObj));
+            if (!(target instanceof List)) throw new RuntimeException("Cannot index non-list variable");
+            return listGet(asList(target), Numbers.toInt(indexObj));
+        }
+
+        private Object listGet(List<Object> list, int position) {
+            int index = position - 1; // 1-based to 0-based
+            if (index < 0 || index >= list.size()) throw new RuntimeException("Index out of bounds");
+            return list.get(index);
+        }
+
         /**
          * Parses a factor, which can be a number, string, identifier, or a parenthesized expression.
          * @return The evaluated result of the factor.
          */
-        private static Object parseFactor() {
+        private Object parseFactor() {
             if (pos >= tokens.size()) throw new RuntimeException("Unexpected end of input");
             Token t = tokens.get(pos);
             pos++;
             if (t.TokenType.equals("NUMBER")) {
-                return Double.parseDouble(t.TokenValue);
+                return Numbers.parse(t.TokenValue);
             } else if (t.TokenType.equals("STRING")) {
                 return t.TokenValue;
+            } else if (t.TokenType.equals("TEMPLATE")) {
+                return render(t);
+            } else if (t.TokenType.equals("IDENTIFIER") && t.TokenValue.equalsIgnoreCase("lines") && isWord(pos, "of") && !functions.containsKey(t.TokenValue)) {
+                // Handle lines of "file" - read a whole file into a list
+                pos++; // consume of
+                Object fileName = parseFactor();
+                if (!(fileName instanceof String)) throw new RuntimeException("Expected file name after 'lines of'");
+                List<Object> list = new ArrayList<>();
+                try (LineReader reader = new LineReader(baseDir.resolve((String) fileName))) {
+                    for (String line = reader.next(); line != null; line = reader.next()) {
+                        checkStringLength(line.length());
+                        list.add(Numbers.parseOrText(line));
+                        checkListSize(list.size());
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException("Error reading file: " + e.getMessage());
+                }
+                return list;
             } else if (t.TokenType.equals("KEYWORD:ASK")) {
                 // Handle ask "prompt" - get user input
-                if (pos >= tokens.size() || !tokens.get(pos).TokenType.equals("STRING")) throw new RuntimeException("Expected prompt string after 'ask'");
-                String prompt = tokens.get(pos).TokenValue;
+                if (pos >= tokens.size() || !(tokens.get(pos).TokenType.equals("STRING") || tokens.get(pos).TokenType.equals("TEMPLATE"))) throw new RuntimeException("Expected prompt string after 'ask'");
+                String prompt = tokens.get(pos).TokenType.equals("TEMPLATE") ? render(tokens.get(pos)) : tokens.get(pos).TokenValue;
                 pos++; // consume prompt string
-                System.out.print(prompt);
-                String userInput = inputScanner.nextLine();
+                out.print(prompt);
+                String userInput = input.nextLine();
+                checkStringLength(userInput.length());
                 // Try to parse as number if possible, otherwise keep as string
                 try {
-                    return Double.parseDouble(userInput);
+                    return Numbers.parse(userInput);
                 } catch (NumberFormatException e) {
                     return userInput;
                 }
             } else if (t.TokenType.equals("IDENTIFIER")) {
                 if (functions.containsKey(t.TokenValue)) {
                     return parseCall(t.TokenValue);
+                } else if (Vectors.isReduction(t.TokenValue) && isWord(pos, "of")) {
+                    // Handle sum of, min of, max of and mean of a numeric list
+                    pos++; // consume of
+                    return Vectors.reduce(t.TokenValue, parseFactor());
                 } else if (variables.containsKey(t.TokenValue)) {
-                    Object varValue = variables.get(t.TokenValue);
+                    Object varValue = lookup(t.TokenValue);
                     // Check for list indexing: var:index
                     if (pos < tokens.size() && tokens.get(pos).TokenValue.equals(":")) {
+                        Token site = tokens.get(pos);
                         pos++; // consume :
                         Object indexObj = parseExpr(false);
-                        if (!(indexObj instanceof Double)) throw new RuntimeException("Index must be numeric");
-                        int index = ((Double) indexObj).intValue() - 1; // 1-based to 0-based
-                        if (!(varValue instanceof List)) throw new RuntimeException("Cannot index non-list variable");
-                        List<Object> list = (List<Object>) varValue;
-                        if (index < 0 || index >= list.size()) throw new RuntimeException("Index out of bounds");
-                        return list.get(index);
+                        return index(site, varValue, indexObj);
+                    } else if (isWord(pos, "has")) {
+                        // Check for pantry membership: var has key, 1 if present and 0 if not
+                        pos++; // consume has
+                        Object key = parseFactor();
+                        if (!(varValue instanceof Pantry)) throw new RuntimeException(t.TokenValue + " is not a pantry");
+                        return ((Pantry) varValue).has(key) ? 1L : 0L;
                     } else {
                         return varValue;
                     }
+                } else if (pos < tokens.size() && tokens.get(pos).TokenValue.equals(":")) {
+                    // skipFactor always takes name:index as one factor, so running it must too
+                    throw new RuntimeException("Undefined variable: " + t.TokenValue);
                 } else {
                     return t.TokenValue;
                 }
@@ -918,14 +3758,50 @@ public class chopped {
             }
         }
 
+        /**
+         * Renders an interpolated string in a single pass, evaluating each {expression} segment against the current variables.
+         * @param template The TEMPLATE token.
+         * @return The rendered text.
+         */
+        private String render(Token template) {
+            StringBuilder sb = new StringBuilder(template.TokenValue.length() + 16);
+            List<Token> oldTokens = tokens;
+            int oldPos = pos;
+            try {
+                for (Object segment : template.segments) {
+                    if (segment instanceof String) {
+                        sb.append((String) segment);
+                        continue;
+                    }
+                    tokens = asList(segment);
+                    pos = 0;
+                    Object value = parseExpr(false);
+                    if (pos < tokens.size()) throw new RuntimeException("Unexpected token in {}: " + tokens.get(pos));
+                    if (value == null) {
+                        sb.append("null");
+                    } else {
+                        appendValue(sb, value);
+                    }
+                }
+            } finally {
+                tokens = oldTokens;
+                pos = oldPos;
+            }
+            checkStringLength(sb.length());
+            return sb.toString();
+        }
+
         /**
          * Parses a function call: funcname with param as value, param2 as value2
          * @param funcName The name of the function.
          * @return The return value of the function.
          */
-        private static Object parseCall(String funcName) {
+        private Object parseCall(String funcName) {
             Function func = functions.get(funcName);
             if (func == null) throw new RuntimeException("Undefined function: " + funcName);
+            func.loaded();
+            checkDeadline();
+            if (callDepth >= limits.maxCallDepth) throw new RuntimeException("Budget exceeded: calls nested deeper than " + limits.maxCallDepth);
 
             Map<String, Object> args = new HashMap<>();
             if (pos < tokens.size() && tokens.get(pos).TokenType.equals("KEYWORD:WITH")) {
@@ -963,26 +3839,31 @@ public class chopped {
             List<Token> oldTokens = tokens;
             tokens = func.body;
             pos = 0;
-            while (pos < tokens.size()) {
-                if (tokens.get(pos).TokenType.equals("NEWLINE")) {
-                    pos++;
-                    continue;
+            Object returnValue;
+            callDepth++;
+            try {
+                while (pos < tokens.size()) {
+                    if (tokens.get(pos).TokenType.equals("NEWLINE")) {
+                        pos++;
+                        continue;
+                    }
+                    parseStatement();
                 }
-                parseStatement(true);
-            }
 
-            // Evaluate return value
-            Object returnValue;
-            if (func.returnTokens.isEmpty()) {
-                returnValue = null;
-            } else {
-                List<Token> oldTokens2 = tokens;
-                int oldPos2 = pos;
-                tokens = func.returnTokens;
-                pos = 0;
-                returnValue = parseExpr(false);
-                tokens = oldTokens2;
-                pos = oldPos2;
+                // Evaluate return value
+                if (func.returnTokens.isEmpty()) {
+                    returnValue = null;
+                } else {
+                    List<Token> oldTokens2 = tokens;
+                    int oldPos2 = pos;
+                    tokens = func.returnTokens;
+                    pos = 0;
+                    returnValue = parseExpr(false);
+                    tokens = oldTokens2;
+                    pos = oldPos2;
+                }
+            } finally {
+                callDepth--;
             }
 
             // Restore
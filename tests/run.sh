@@ -0,0 +1,25 @@
+#!/bin/sh
+# Runs every tests/*.chopped script and compares its output with the matching .expected file.
+# A script's extra command-line flags, if any, go in a .args file of the same name.
+# Scripts run in name order from this directory, so numbered scripts can share a state file.
+cd "$(dirname "$0")" || exit 1
+classes=$(mktemp -d)
+trap 'rm -rf "$classes" ./*.state' EXIT
+javac -Xlint:all -d "$classes" ../chopped.java || exit 1
+rm -f ./*.state
+failed=0
+for script in *.chopped; do
+    name=${script%.chopped}
+    args=""
+    [ -f "$name.args" ] && args=$(cat "$name.args")
+    # shellcheck disable=SC2086
+    actual=$(java -cp "$classes" chopped $args "$script" 2>&1 < /dev/null)
+    if [ "$actual" = "$(cat "$name.expected")" ]; then
+        echo "ok   $name"
+    else
+        echo "FAIL $name"
+        printf '%s\n' "$actual" | diff "$name.expected" - | sed 's/^/     /'
+        failed=1
+    fi
+done
+exit $failed